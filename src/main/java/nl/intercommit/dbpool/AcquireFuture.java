@@ -0,0 +1,309 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The result of {@link DbPool#acquireAsync(long, long)}: a request for a connection that does not block a thread while waiting.
+ * <br>The request is registered as waiter in the pool's {@link ConnectionBag} and gets a released or new connection
+ * in the same order as threads waiting in {@link DbPool#acquire(long, long)}.
+ * The same validation and dirty checks are done and the lease time-out is set in the same manner.
+ * Validation (when required) and calling the listeners is done by a thread from {@link DbPool#asyncExecutor}.
+ * The acquire time-out is also scheduled on this executor.
+ * <br>Use {@link #addListener(AcquireListener)} to get notified of the result or use one of the (blocking) get-methods.
+ * A connection acquired after the request was cancelled is released back to the pool.
+ * @author frederikw
+ *
+ */
+public class AcquireFuture implements Future<Connection> {
+
+	protected final DbPool pool;
+	protected final long acquireTimeOutMs;
+	protected final long leaseTimeOutMs;
+	protected final long startTime;
+	/** The call site that requested the connection, null if not captured (see {@link DbPool#acquireSiteSampleRate}). */
+	protected final StackTraceElement[] acquireSite;
+	protected final List<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+	protected final CountDownLatch done = new CountDownLatch(1);
+	/** The result: a Connection or a SQLException. */
+	protected final AtomicReference<Object> result = new AtomicReference<Object>();
+	/** The failure set by {@link #cancel(boolean)}. */
+	protected volatile SQLException cancelError;
+	protected volatile ScheduledFuture<?> timeOutTask;
+	protected volatile AsyncWaiter waiter;
+
+	public AcquireFuture(final DbPool pool, final long acquireTimeOutMs, final long leaseTimeOutMs) {
+		super();
+		this.pool = pool;
+		this.acquireTimeOutMs = acquireTimeOutMs;
+		this.leaseTimeOutMs = leaseTimeOutMs;
+		startTime = System.currentTimeMillis();
+		acquireSite = pool.sampleAcquireSite();
+	}
+
+	/** A listener that is notified only once. */
+	protected static class Registration {
+
+		protected final AcquireListener listener;
+		protected final AtomicBoolean notified = new AtomicBoolean();
+
+		public Registration(final AcquireListener listener) {
+			super();
+			this.listener = listener;
+		}
+	}
+
+	/** A waiter in the {@link ConnectionBag} that continues this request in the {@link DbPool#asyncExecutor}. */
+	protected class AsyncWaiter extends ConnectionBag.Waiter implements Runnable {
+
+		public AsyncWaiter() {
+			super(null);
+		}
+
+		@Override
+		protected void onResult() {
+
+			pool.bag.removeWaiter(this);
+			pool.acquireWaiters.decrementAndGet();
+			execute(this);
+		}
+
+		@Override
+		public void run() {
+
+			final Object r = getResult();
+			if (r instanceof PooledConnection) {
+				complete((PooledConnection) r, false);
+			} else {
+				try {
+					pool.checkCreateError(startTime);
+					attempt();
+				} catch (SQLException sqle) {
+					fail(sqle);
+				}
+			}
+		}
+	}
+
+	/** Starts this request, called by the pool. */
+	protected void start() {
+
+		if (acquireTimeOutMs > 0L) {
+			try {
+				timeOutTask = pool.getAsyncExecutor().schedule(new Runnable() {
+					@Override public void run() { timeOut(); }
+				}, acquireTimeOutMs, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ree) {
+				fail(new SQLException("Database pool is closed."));
+				return;
+			}
+		}
+		attempt();
+	}
+
+	/** Tries to get an idle connection, else registers a waiter and requests a new connection if needed. */
+	protected void attempt() {
+
+		if (isDone()) return;
+		if (pool.closed) {
+			fail(new SQLException("Database pool is closed."));
+			return;
+		}
+		final PooledConnection pc = pool.bag.claimIdle();
+		if (pc != null) {
+			complete(pc, true);
+			return;
+		}
+		if (acquireTimeOutMs <= 0L) {
+			// Same as acquire: do not wait for a connection.
+			timeOut();
+			return;
+		}
+		pool.acquireWaiters.incrementAndGet();
+		if (pool.isCreateAllowed()) pool.requestNewConnection();
+		final AsyncWaiter w = new AsyncWaiter();
+		waiter = w;
+		pool.bag.addWaiter(w);
+		if (isDone() && w.cancel()) {
+			pool.bag.removeWaiter(w);
+			pool.acquireWaiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Validates the claimed connection, removes it when it is dirty and leases it out.
+	 * @param inCaller If true, validation (when required) is done by the {@link DbPool#asyncExecutor}.
+	 */
+	protected void complete(final PooledConnection pc, final boolean inCaller) {
+
+		if (isDone()) {
+			pool.bag.requite(pc);
+			pool.idled(pc);
+			return;
+		}
+		if (inCaller && !pc.isDirty() && pool.isValidationRequired(pc)) {
+			execute(new Runnable() {
+				@Override public void run() { complete(pc, false); }
+			});
+			return;
+		}
+		if (!pc.isDirty()) pool.validate(pc);
+		if (pc.isDirty()) {
+			pool.removePooledConnection(pc);
+			attempt();
+			return;
+		}
+		pool.leased(pc, leaseTimeOutMs, acquireSite, startTime);
+		final Connection c = pool.toLeasedConnection(pc);
+		if (!succeed(c)) {
+			pool.release(c);
+		}
+	}
+
+	/** Runs the task in the {@link DbPool#asyncExecutor} or in the current thread if the pool is closed. */
+	protected void execute(final Runnable r) {
+
+		try {
+			pool.getAsyncExecutor().execute(r);
+		} catch (RejectedExecutionException ree) {
+			r.run();
+		}
+	}
+
+	/** Called by the time-out task scheduled in {@link #start()}. */
+	protected void timeOut() {
+
+		fail(new SQLException("Failed to acquire database connection from pool within " + acquireTimeOutMs + " milliseconds."));
+	}
+
+	protected void cancelWaiter() {
+
+		final AsyncWaiter w = waiter;
+		if (w != null && w.cancel()) {
+			pool.bag.removeWaiter(w);
+			pool.acquireWaiters.decrementAndGet();
+		}
+	}
+
+	protected boolean succeed(final Connection dbConn) {
+		return setResult(dbConn);
+	}
+
+	protected boolean fail(final SQLException sqle) {
+		return setResult(sqle);
+	}
+
+	/** 
+	 * Sets the result (only once), stops the time-out task and notifies the listeners.
+	 * A failed request stops waiting before it is done, so that a connection released afterwards goes back to the pool. 
+	 */
+	protected boolean setResult(final Object r) {
+
+		if (!result.compareAndSet(null, r)) return false;
+		final ScheduledFuture<?> t = timeOutTask;
+		if (t != null) t.cancel(false);
+		if (r instanceof SQLException) cancelWaiter();
+		done.countDown();
+		for (final Registration reg : listeners) notify(reg, r);
+		return true;
+	}
+
+	protected void notify(final Registration reg, final Object r) {
+
+		if (!reg.notified.compareAndSet(false, true)) return;
+		final AcquireListener l = reg.listener;
+		try {
+			if (r instanceof Connection) {
+				l.acquired((Connection) r);
+			} else {
+				l.failed((SQLException) r);
+			}
+		} catch (RuntimeException re) {
+			pool.log.error("Acquire listener " + l + " failed.", re);
+		}
+	}
+
+	/**
+	 * Adds a listener that is notified when a connection is acquired or the request failed.
+	 * If this request is already done, the listener is notified immediately.
+	 */
+	public AcquireFuture addListener(final AcquireListener l) {
+
+		final Registration reg = new Registration(l);
+		listeners.add(reg);
+		final Object r = result.get();
+		if (r != null) notify(reg, r);
+		return this;
+	}
+
+	/** Cancels the request, has no effect when the request is already done. Listeners are notified with a failure. */
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+
+		final SQLException sqle = new SQLException("Acquire request was cancelled.");
+		cancelError = sqle;
+		return fail(sqle);
+	}
+
+	@Override
+	public boolean isCancelled() { 
+		
+		final SQLException sqle = cancelError;
+		return (sqle != null && result.get() == sqle); 
+	}
+
+	@Override
+	public boolean isDone() { return (result.get() != null); }
+
+	@Override
+	public Connection get() throws InterruptedException, ExecutionException {
+
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public Connection get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+		if (!done.await(timeout, unit)) throw new TimeoutException();
+		return getResult();
+	}
+
+	protected Connection getResult() throws ExecutionException {
+
+		if (isCancelled()) throw new CancellationException();
+		final Object r = result.get();
+		if (r instanceof Connection) return (Connection) r;
+		throw new ExecutionException((SQLException) r);
+	}
+}
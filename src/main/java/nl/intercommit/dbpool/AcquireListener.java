@@ -0,0 +1,36 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/** 
+ * Receives the result of {@link DbPool#acquireAsync(long)}, see {@link AcquireFuture#addListener(AcquireListener)}.
+ * Methods are called by a thread from the pool's {@link DbPool#asyncExecutor} or, 
+ * when the result is already available, by the thread registering the listener. 
+ * Implementations should not block for long.
+ */
+public interface AcquireListener {
+
+	/** Called when a connection was acquired. The connection must be released to the pool after use. */
+	void acquired(Connection dbConn);
+	/** Called when no connection could be acquired (or the acquire request was cancelled). */
+	void failed(SQLException sqle);
+}
@@ -0,0 +1,353 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import static nl.intercommit.dbpool.PooledConnection.STATE_IDLE;
+import static nl.intercommit.dbpool.PooledConnection.STATE_LEASED;
+import static nl.intercommit.dbpool.PooledConnection.STATE_REMOVED;
+import static nl.intercommit.dbpool.PooledConnection.STATE_RESERVED;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds the pooled connections for a {@link DbPool} and hands them out without locks.
+ * <br>A connection is claimed by changing its state (see {@link PooledConnection#compareAndSetState(int, int)})
+ * from {@link PooledConnection#STATE_IDLE} to {@link PooledConnection#STATE_LEASED}.
+ * To find an idle connection, a thread looks in the following places:
+ * <br> - a (small) list of connections recently released by the same thread,
+ * so that a thread tends to re-use the same connection without competing with other threads;
+ * <br> - the shared list containing all connections;
+ * <br> - a queue of waiters: a thread that releases a connection while other threads are waiting,
+ * hands the connection directly to the thread that has been waiting the longest.
+ * <br>Virtual threads (Java 21 and higher) are usually not re-used, so virtual threads do not get a list 
+ * of recently released connections (see {@link #isVirtual(Thread)}). Waiting virtual threads are parked
+ * via {@link LockSupport} which does not pin the carrier thread.
+ * <br>The bag does not create or close connections, that is done by the {@link DbPool}.
+ * @author frederikw
+ *
+ */
+public class ConnectionBag {
+
+	/** Maximum amount of recently released connections remembered per thread. Default 8. */
+	public int threadListSize = 8;
+
+	/** All connections in the bag (leased or not). */
+	protected final CopyOnWriteArrayList<PooledConnection> sharedList = new CopyOnWriteArrayList<PooledConnection>();
+	/** Connections recently released by a thread, most recent last. */
+	protected final ThreadLocal<List<PooledConnection>> threadList = new ThreadLocal<List<PooledConnection>>() {
+		@Override protected List<PooledConnection> initialValue() {
+			return new ArrayList<PooledConnection>(threadListSize);
+		}
+	};
+	/** Amount of waiters in the {@link #waitQueue}. */
+	protected final AtomicInteger waiters = new AtomicInteger();
+	/** Waiters for a connection, oldest first. */
+	protected final ConcurrentLinkedQueue<Waiter> waitQueue = new ConcurrentLinkedQueue<Waiter>();
+	/** 
+	 * True when a {@link #signalWaiter()} call did not find a waiter, consumed by the next waiter.
+	 * At most one signal is kept: a waiter that was woken up checks the pool again, 
+	 * more signals would only wake up later waiters for nothing.
+	 */
+	protected final AtomicBoolean pendingSignal = new AtomicBoolean();
+
+	/** Thread.isVirtual() (Java 21 and higher), null if not available. */
+	protected static final Method IS_VIRTUAL = getIsVirtualMethod();
+
+	/** Result for a waiter that should check again if a new connection can be created. */
+	public static final Object RETRY = new Object();
+	/** Result for a waiter that stopped waiting. */
+	public static final Object CANCELLED = new Object();
+
+	/** 
+	 * A thread waiting for a connection. 
+	 * A waiter gets one result: a connection in leased state, {@link ConnectionBag#RETRY} or {@link ConnectionBag#CANCELLED}.
+	 */
+	public static class Waiter {
+
+		protected final AtomicReference<Object> result = new AtomicReference<Object>();
+		protected final Thread thread;
+
+		/** A waiter for the current thread. */
+		public Waiter() {
+			this(Thread.currentThread());
+		}
+
+		/** A waiter for the given thread, use null when {@link #onResult()} is overridden. */
+		public Waiter(final Thread thread) {
+			super();
+			this.thread = thread;
+		}
+
+		/** @return True if the result was set, false if this waiter already has a result. */
+		public boolean offer(final Object o) {
+
+			if (!result.compareAndSet(null, o)) return false;
+			onResult();
+			return true;
+		}
+
+		/** 
+		 * Called once when this waiter gets a result via {@link #offer(Object)}, wakes up the waiting thread.
+		 * Runs in the thread that provides the result, so this method should return quickly. 
+		 */
+		protected void onResult() {
+			if (thread != null) LockSupport.unpark(thread);
+		}
+
+		/** @return True if this waiter was cancelled, false if this waiter already has a result. */
+		public boolean cancel() { return result.compareAndSet(null, CANCELLED); }
+
+		/** @return The result, null if this waiter is still waiting. */
+		public Object getResult() { return result.get(); }
+	}
+
+	/**
+	 * Claims an idle connection, waits at most waitTimeMs for a connection to be released.
+	 * @param waitTimeMs If 0, only idle connections are checked. 
+	 * @return A connection in leased state or null if no connection became available within waitTimeMs
+	 * or the waiter was woken up by {@link #signalWaiter()}.
+	 */
+	public PooledConnection borrow(final long waitTimeMs) throws InterruptedException {
+
+		PooledConnection pc = claimIdle();
+		if (pc != null || waitTimeMs < 1L) return pc;
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeMs);
+		final Waiter w = new Waiter();
+		addWaiter(w);
+		try {
+			while (w.getResult() == null) {
+				final long waitNanos = deadline - System.nanoTime();
+				if (waitNanos <= 0L) break;
+				LockSupport.parkNanos(this, waitNanos);
+				if (Thread.interrupted()) {
+					if (w.cancel()) throw new InterruptedException();
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (w.cancel()) return null;
+			final Object result = w.getResult();
+			return (result instanceof PooledConnection ? (PooledConnection) result : null);
+		} finally {
+			removeWaiter(w);
+		}
+	}
+
+	/**
+	 * Queues a waiter, the waiter gets a result via {@link Waiter#offer(Object)}.
+	 * Call {@link #removeWaiter(Waiter)} when the waiter has a result or is cancelled.
+	 */
+	public void addWaiter(final Waiter w) {
+
+		waitQueue.add(w);
+		waiters.incrementAndGet();
+		// A connection could have been released just before this waiter was queued.
+		final PooledConnection pc = scanShared();
+		if (pc != null) {
+			if (w.offer(pc)) {
+				waitQueue.remove(w);
+			} else {
+				// Got a result after all.
+				requite(pc);
+			}
+		} else if (consumeSignal()) {
+			// A waiter could have been signalled just before this waiter was queued.
+			if (w.offer(RETRY)) {
+				waitQueue.remove(w);
+			} else {
+				signalWaiter();
+			}
+		}
+	}
+
+	/** Removes a waiter that has a result or was cancelled. */
+	public void removeWaiter(final Waiter w) {
+
+		waiters.decrementAndGet();
+		if (w.getResult() == CANCELLED) waitQueue.remove(w);
+	}
+
+	/** Claims a connection recently released by the current thread or any other idle connection. */
+	protected PooledConnection claimIdle() {
+
+		final List<PooledConnection> recent = getThreadList();
+		if (recent != null) {
+			for (int i = recent.size() - 1; i >= 0; i--) {
+				final PooledConnection pc = recent.remove(i);
+				if (pc.compareAndSetState(STATE_IDLE, STATE_LEASED)) return pc;
+			}
+		}
+		return scanShared();
+	}
+
+	/** 
+	 * The list of connections recently released by the current thread.
+	 * @return null for virtual threads or when {@link #threadListSize} is 0.
+	 */
+	protected List<PooledConnection> getThreadList() {
+
+		if (threadListSize < 1 || isVirtual(Thread.currentThread())) return null;
+		return threadList.get();
+	}
+
+	/** Claims the first idle connection from the shared list. */
+	protected PooledConnection scanShared() {
+
+		for (final PooledConnection pc : sharedList) {
+			if (pc.compareAndSetState(STATE_IDLE, STATE_LEASED)) return pc;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a leased connection to the bag.
+	 * If other threads are waiting, the connection is handed to the oldest waiter,
+	 * else the connection is remembered as recently used by the current thread.
+	 */
+	public void requite(final PooledConnection pc) {
+
+		pc.setState(STATE_IDLE);
+		if (handoff(pc)) return;
+		final List<PooledConnection> recent = getThreadList();
+		if (recent != null && recent.size() < threadListSize) recent.add(pc);
+	}
+
+	/**
+	 * Hands an idle connection to the oldest waiter.
+	 * @return True when the connection was handed off or claimed by another thread while trying to hand it off.
+	 */
+	protected boolean handoff(final PooledConnection pc) {
+
+		while (!waitQueue.isEmpty()) {
+			if (!pc.compareAndSetState(STATE_IDLE, STATE_LEASED)) return true;
+			final Waiter w = waitQueue.poll();
+			if (w != null && w.offer(pc)) return true;
+			// No waiter took the connection, make it available again and check for new waiters.
+			pc.setState(STATE_IDLE);
+		}
+		return false;
+	}
+
+	/** 
+	 * Wakes up the oldest waiter without a connection (the waiter receives {@link #RETRY}),
+	 * used when a new connection could not be created. 
+	 */
+	public void signalWaiter() {
+
+		Waiter w;
+		while ((w = waitQueue.poll()) != null) {
+			if (w.offer(RETRY)) return;
+		}
+		pendingSignal.set(true);
+	}
+
+	/** Wakes up all waiters without a connection (the waiters receive {@link #RETRY}), used when the pool is closed. */
+	public void signalAllWaiters() {
+
+		Waiter w;
+		while ((w = waitQueue.poll()) != null) w.offer(RETRY);
+	}
+
+	/** @return True if a signal was pending (see {@link #signalWaiter()}). */
+	protected boolean consumeSignal() { return pendingSignal.compareAndSet(true, false); }
+
+	/** Adds a connection to the bag. The connection is usually in leased state (a new connection for a waiting thread). */
+	public void add(final PooledConnection pc) {
+
+		sharedList.add(pc);
+		if (pc.getState() == STATE_IDLE) handoff(pc);
+	}
+
+	/**
+	 * Removes a leased or reserved connection from the bag.
+	 * @return False if the connection was not leased or reserved (in which case it is not removed).
+	 */
+	public boolean remove(final PooledConnection pc) {
+
+		if (!pc.compareAndSetState(STATE_LEASED, STATE_REMOVED)
+				&& !pc.compareAndSetState(STATE_RESERVED, STATE_REMOVED)) {
+			return false;
+		}
+		sharedList.remove(pc);
+		return true;
+	}
+
+	/**
+	 * Claims an idle connection so that it cannot be leased.
+	 * Call {@link #unreserve(PooledConnection)} or {@link #remove(PooledConnection)} after the connection is reserved.
+	 * @return True if the connection was reserved.
+	 */
+	public boolean reserve(final PooledConnection pc) {
+		return pc.compareAndSetState(STATE_IDLE, STATE_RESERVED);
+	}
+
+	/** Makes a reserved connection available for leasing again. */
+	public void unreserve(final PooledConnection pc) {
+
+		if (pc.compareAndSetState(STATE_RESERVED, STATE_IDLE)) handoff(pc);
+	}
+
+	/** All connections in the bag. Iterating the returned list does not require locking. */
+	public List<PooledConnection> values() { return sharedList; }
+
+	/** Amount of connections in the bag with the given state. */
+	public int getCount(final int state) {
+
+		int count = 0;
+		for (final PooledConnection pc : sharedList) {
+			if (pc.getState() == state) count++;
+		}
+		return count;
+	}
+
+	/** Amount of threads waiting for a connection. */
+	public int getWaitingCount() { return waiters.get(); }
+
+	/** Amount of connections in the bag. */
+	public int size() { return sharedList.size(); }
+
+	/** @return True if the thread is a virtual thread (always false before Java 21). */
+	public static boolean isVirtual(final Thread t) {
+
+		// Platform threads are usually of type Thread, virtual threads never are.
+		if (IS_VIRTUAL == null || t.getClass() == Thread.class) return false;
+		try {
+			return Boolean.TRUE.equals(IS_VIRTUAL.invoke(t));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	protected static Method getIsVirtualMethod() {
+
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
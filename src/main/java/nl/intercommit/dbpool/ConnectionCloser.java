@@ -0,0 +1,231 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes database connections in the background for a {@link DbPool},
+ * so that a database that does not respond does not block threads releasing connections or the {@link DbPoolWatcher}.
+ * <br>The amount of connections waiting to be closed is limited (see {@link DbPool#maxCloseBacklog}).
+ * When the backlog is full, the connection is aborted (see {@link #abort(Connection)})
+ * or, when the driver does not support abort, closed in the calling thread.
+ * <br>{@link #shutdown(long)} waits for the backlog to be closed and aborts connections that were not closed in time.
+ * @author frederikw
+ *
+ */
+public class ConnectionCloser {
+
+	protected Logger log = LoggerFactory.getLogger(getClass());
+
+	/** <code>Connection.abort(Executor)</code>, null before Java 7. */
+	protected static final Method ABORT = getAbortMethod();
+
+	/** The factory used to close connections for which no factory is given. */
+	protected final DbConnFactory connFactory;
+	protected final ThreadPoolExecutor executor;
+	/** Runs the clean-up of aborted connections, see {@link #abort(Connection)}. */
+	protected final Executor abortExecutor;
+	protected final DbPoolThreadFactory threadFactory;
+	/** Amount of connections waiting to be closed or being closed. */
+	protected final AtomicInteger backlog = new AtomicInteger();
+	/** Number of connections closed. */
+	public final AtomicLong closedCount = new AtomicLong();
+	/** Number of connections aborted. */
+	public final AtomicLong abortedCount = new AtomicLong();
+
+	/**
+	 * @param connFactory The factory used to close connections for which no factory is given.
+	 * @param threads The amount of threads closing connections (threads stop when there is nothing to close).
+	 * @param maxBacklog The maximum amount of connections waiting to be closed.
+	 */
+	public ConnectionCloser(final DbConnFactory connFactory, final int threads, final int maxBacklog) {
+		super();
+		this.connFactory = connFactory;
+		threadFactory = new DbPoolThreadFactory("DbPoolCloser[" + connFactory + "]", true);
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+				60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, maxBacklog)), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		abortExecutor = new Executor() {
+			@Override public void execute(final Runnable r) {
+				try {
+					executor.execute(r);
+				} catch (RejectedExecutionException ree) {
+					threadFactory.newThread(r).start();
+				}
+			}
+		};
+	}
+
+	protected static Method getAbortMethod() {
+
+		try {
+			return Connection.class.getMethod("abort", Executor.class);
+		} catch (Exception ignored) {
+			return null;
+		}
+	}
+
+	/** Closes the connection in the background using {@link DbConnFactory#close(Connection)}, see {@link #close(Connection, boolean)}. */
+	public void close(final Connection dbConn) { close(connFactory, dbConn, null); }
+
+	/**
+	 * Closes the connection in the background using the factory.
+	 * When the backlog is full (or this closer was shut down), the connection is aborted or, if that fails, closed in the calling thread.
+	 * @param rollback If true, a rollback is done before the connection is closed (see {@link DbConnFactory#close(Connection, boolean)}).
+	 */
+	public void close(final Connection dbConn, final boolean rollback) { close(connFactory, dbConn, Boolean.valueOf(rollback)); }
+
+	/** Same as {@link #close(Connection)} but using the given factory (e.g. the factory that created the connection). */
+	public void close(final DbConnFactory factory, final Connection dbConn) { close(factory, dbConn, null); }
+
+	/** Same as {@link #close(Connection, boolean)} but using the given factory (e.g. the factory that created the connection). */
+	public void close(final DbConnFactory factory, final Connection dbConn, final boolean rollback) { close(factory, dbConn, Boolean.valueOf(rollback)); }
+
+	/** @param rollback If null, the factory determines if a rollback is done. */
+	protected void close(final DbConnFactory factory, final Connection dbConn, final Boolean rollback) {
+
+		if (dbConn == null) return;
+		backlog.incrementAndGet();
+		try {
+			executor.execute(new CloseTask(factory, dbConn, rollback));
+		} catch (RejectedExecutionException ree) {
+			backlog.decrementAndGet();
+			if (!abort(dbConn)) closeNow(factory, dbConn, rollback);
+		}
+	}
+
+	/** 
+	 * Closes the connection in the calling thread using the factory.
+	 * @param rollback If null, the factory determines if a rollback is done.
+	 */
+	protected void closeNow(final DbConnFactory factory, final Connection dbConn, final Boolean rollback) {
+
+		try {
+			if (rollback == null) {
+				factory.close(dbConn);
+			} else {
+				factory.close(dbConn, rollback);
+			}
+			closedCount.incrementAndGet();
+		} catch (RuntimeException re) {
+			log.warn("Failed to close database connection " + dbConn, re);
+		}
+	}
+
+	/**
+	 * Aborts the connection using <code>Connection.abort(Executor)</code> (Java 7 and higher):
+	 * the connection is marked as closed and the network connection is released without waiting for the database.
+	 * The clean-up runs in the background.
+	 * @return False if the driver does not support abort or abort failed.
+	 */
+	public boolean abort(final Connection dbConn) {
+
+		if (ABORT == null || dbConn == null) return false;
+		try {
+			ABORT.invoke(dbConn, abortExecutor);
+			abortedCount.incrementAndGet();
+			return true;
+		} catch (InvocationTargetException ite) {
+			// SQLFeatureNotSupportedException or a driver without the method (AbstractMethodError).
+			if (log.isDebugEnabled()) log.debug("Failed to abort database connection " + dbConn + ": " + ite.getCause());
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) log.debug("Failed to abort database connection " + dbConn + ": " + e);
+		}
+		return false;
+	}
+
+	/** 
+	 * Runs a (short) task for a connection in the background, e.g. cancelling a statement. 
+	 * The task runs in a new thread when the backlog is full.
+	 */
+	public void execute(final Runnable task) { abortExecutor.execute(task); }
+	
+	/** The executor used to abort connections, also used for <code>Connection.setNetworkTimeout</code>. */
+	public Executor getExecutor() { return abortExecutor; }
+
+	/** Amount of connections waiting to be closed or being closed. */
+	public int getBacklog() { return backlog.get(); }
+
+	/**
+	 * Stops accepting connections to close (connections are then aborted or closed in the calling thread)
+	 * and waits for the backlog to be closed. Connections not closed within the given time are aborted.
+	 * @return True if all connections were closed in time.
+	 */
+	public boolean shutdown(final long drainTimeMs) {
+
+		executor.shutdown();
+		boolean drained = false;
+		try {
+			drained = executor.awaitTermination(Math.max(0L, drainTimeMs), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		if (drained) return true;
+		final List<Runnable> tasks = executor.shutdownNow();
+		log.warn("Database connections not closed within " + drainTimeMs + " ms, aborting " + tasks.size() + " waiting connection(s) for " + connFactory);
+		for (final Runnable r : tasks) {
+			if (r instanceof CloseTask) {
+				final CloseTask task = (CloseTask) r;
+				backlog.decrementAndGet();
+				if (!abort(task.dbConn)) closeNow(task.factory, task.dbConn, task.rollback);
+			} else {
+				// Clean-up of an aborted connection.
+				threadFactory.newThread(r).start();
+			}
+		}
+		return false;
+	}
+
+	protected class CloseTask implements Runnable {
+
+		protected final DbConnFactory factory;
+		protected final Connection dbConn;
+		protected final Boolean rollback;
+
+		public CloseTask(final DbConnFactory factory, final Connection dbConn, final Boolean rollback) {
+			super();
+			this.factory = factory;
+			this.dbConn = dbConn;
+			this.rollback = rollback;
+		}
+
+		@Override
+		public void run() {
+			try {
+				closeNow(factory, dbConn, rollback);
+			} finally {
+				backlog.decrementAndGet();
+			}
+		}
+	}
+}
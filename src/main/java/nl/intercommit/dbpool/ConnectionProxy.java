@@ -0,0 +1,239 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles the calls to a Connection proxy handed out by the {@link DbPool} when {@link DbPool#useProxy} is true.
+ * <br>A new proxy is created for each lease. The proxy carries the {@link PooledConnection},
+ * so that {@link DbPool#release(Connection)} does not have to look up the pooled connection.
+ * <br>Calling <code>close()</code> on the proxy releases the connection back to the pool
+ * (the database connection is not closed). After the proxy is released, <code>close()</code> has no effect,
+ * <code>isClosed()</code> returns true and all other methods throw a SQLException:
+ * a released connection can be used by another thread.
+ * <br><code>unwrap</code> and <code>isWrapperFor</code> give access to the database connection.
+ * <br>Changes to the session properties (auto-commit, transaction isolation, read-only and catalog) 
+ * and the transaction state are tracked in the {@link SessionState} of the pooled connection.
+ * To track the transaction state, statements created via the proxy are also proxies.
+ * @author frederikw
+ *
+ */
+public class ConnectionProxy implements InvocationHandler {
+
+	/** The class of all connection proxies. */
+	protected static final Class<?> PROXY_CLASS = createProxyClass();
+	protected static final Constructor<?> PROXY_CONSTRUCTOR = getProxyConstructor();
+
+	protected final DbPool pool;
+	protected final PooledConnection pc;
+	protected final Connection proxy;
+	protected final AtomicBoolean released = new AtomicBoolean();
+
+	protected ConnectionProxy(final DbPool pool, final PooledConnection pc) {
+		super();
+		this.pool = pool;
+		this.pc = pc;
+		if (pc.sessionState == null) pc.sessionState = new SessionState(pc.dbConn);
+		try {
+			proxy = (Connection) PROXY_CONSTRUCTOR.newInstance(this);
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to create a proxy for database connection " + pc.dbConn, e);
+		}
+	}
+
+	/** @return A new proxy for a leased connection. */
+	public static Connection newProxy(final DbPool pool, final PooledConnection pc) {
+		return new ConnectionProxy(pool, pc).proxy;
+	}
+
+	/** @return The handler of the connection proxy or null if the connection is not a proxy. */
+	public static ConnectionProxy getHandler(final Connection c) {
+
+		if (c.getClass() != PROXY_CLASS) return null;
+		// Other Connection proxies from the same class loader share the proxy class.
+		final InvocationHandler h = Proxy.getInvocationHandler(c);
+		return (h instanceof ConnectionProxy ? (ConnectionProxy) h : null);
+	}
+
+	/** 
+	 * Proxies for the same interface and class loader share one class: 
+	 * the class is taken from a proxy that is not used (<code>Proxy.getProxyClass</code> is deprecated).
+	 */
+	protected static Class<?> createProxyClass() {
+
+		final InvocationHandler unused = new InvocationHandler() {
+			@Override public Object invoke(final Object p, final Method method, final Object[] args) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		return Proxy.newProxyInstance(ConnectionProxy.class.getClassLoader(), new Class<?>[] { Connection.class }, unused).getClass();
+	}
+
+	protected static Constructor<?> getProxyConstructor() {
+
+		try {
+			return PROXY_CLASS.getConstructor(InvocationHandler.class);
+		} catch (NoSuchMethodException nsme) {
+			throw new RuntimeException("Unable to find proxy constructor.", nsme);
+		}
+	}
+
+	/**
+	 * Marks the proxy as released, called by the pool.
+	 * @return False if the proxy was already released.
+	 */
+	public boolean release() { return released.compareAndSet(false, true); }
+
+	public boolean isReleased() { return released.get(); }
+
+	/** The pooled connection this proxy was created for. */
+	public PooledConnection getPooledConnection() { return pc; }
+
+	@Override
+	public Object invoke(final Object p, final Method method, final Object[] args) throws Throwable {
+
+		final String name = method.getName();
+		if ("close".equals(name)) {
+			if (!released.get()) pool.release(proxy);
+			return null;
+		}
+		if ("isClosed".equals(name)) {
+			if (released.get()) return Boolean.TRUE;
+		} else if ("equals".equals(name)) {
+			return (p == args[0]);
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(p);
+		} else if ("toString".equals(name)) {
+			return "Pooled " + pc.dbConn;
+		}
+		if (released.get()) {
+			throw new SQLException("Database connection was released to the pool and can no longer be used: " + pc.dbConn);
+		}
+		if ("unwrap".equals(name)) {
+			if (((Class<?>) args[0]).isInstance(pc.dbConn)) return pc.dbConn;
+		} else if ("isWrapperFor".equals(name)) {
+			if (((Class<?>) args[0]).isInstance(pc.dbConn)) return Boolean.TRUE;
+		}
+		final SessionState session = pc.sessionState;
+		if ("setAutoCommit".equals(name)) {
+			session.beforeChange(SessionState.AUTO_COMMIT);
+			invokeLeased(pc.dbConn, method, args);
+			session.autoCommitChanged((Boolean) args[0]);
+			return null;
+		} else if ("setTransactionIsolation".equals(name)) {
+			session.beforeChange(SessionState.TRANSACTION_ISOLATION);
+		} else if ("setReadOnly".equals(name)) {
+			session.beforeChange(SessionState.READ_ONLY);
+		} else if ("setCatalog".equals(name)) {
+			session.beforeChange(SessionState.CATALOG);
+		} else if (("commit".equals(name) || "rollback".equals(name)) && (args == null || args.length == 0)) {
+			invokeLeased(pc.dbConn, method, args);
+			session.transactionEnded();
+			return null;
+		}
+		final Object result = invokeLeased(pc.dbConn, method, args);
+		if (result instanceof Statement) {
+			return Proxy.newProxyInstance(PROXY_CLASS.getClassLoader(), new Class<?>[] { method.getReturnType() },
+					new StatementHandler((Statement) result));
+		}
+		return result;
+	}
+
+	/** 
+	 * Invokes a method of the leased connection or one of its statements. 
+	 * A SQLException marks the connection for validation before its next lease (see {@link PooledConnection#leaseError}).
+	 */
+	protected Object invokeLeased(final Object target, final Method method, final Object[] args) throws Throwable {
+
+		try {
+			return invokeTarget(target, method, args);
+		} catch (SQLException sqle) {
+			pc.leaseError = true;
+			throw sqle;
+		}
+	}
+
+	protected static Object invokeTarget(final Object target, final Method method, final Object[] args) throws Throwable {
+
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException ite) {
+			throw ite.getCause();
+		}
+	}
+
+	/** 
+	 * Handles the calls to a Statement proxy: registers the execution of statements in the {@link SessionState}
+	 * and returns the connection proxy as the statement's connection. 
+	 * After the connection proxy is released, <code>close()</code> and <code>isClosed()</code> (returns true) 
+	 * are the only methods that do not throw a SQLException.
+	 */
+	protected class StatementHandler implements InvocationHandler {
+
+		protected final Statement statement;
+
+		public StatementHandler(final Statement statement) {
+			super();
+			this.statement = statement;
+		}
+
+		@Override
+		public Object invoke(final Object p, final Method method, final Object[] args) throws Throwable {
+
+			final String name = method.getName();
+			if ("equals".equals(name)) {
+				return (p == args[0]);
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(p);
+			} else if ("isClosed".equals(name)) {
+				if (released.get()) return Boolean.TRUE;
+			} else if ("close".equals(name)) {
+				// Does not mark the connection for validation, it could be leased by another thread.
+				if (released.get()) return invokeTarget(statement, method, args);
+			} else if (released.get()) {
+				throw new SQLException("Database connection was released to the pool, statement can no longer be used: " + pc.dbConn);
+			}
+			if (name.startsWith("execute")) {
+				pc.sessionState.beforeExecute();
+				// Allows the statement to be cancelled when the lease expires.
+				pc.statement = statement;
+				final StatementTimer.Timeout timeOut = pool.startQueryTimer(statement);
+				try {
+					return invokeLeased(statement, method, args);
+				} finally {
+					if (timeOut != null) timeOut.cancel();
+				}
+			} else if ("getConnection".equals(name)) {
+				return proxy;
+			} else if ("unwrap".equals(name) || "isWrapperFor".equals(name)) {
+				if (((Class<?>) args[0]).isInstance(statement)) return ("unwrap".equals(name) ? statement : Boolean.TRUE);
+			}
+			return invokeLeased(statement, method, args);
+		}
+	}
+}
@@ -96,6 +96,7 @@ public class DbConn {
 		if (conn == null) {
 			if (pool != null) {
 				conn = pool.acquire();
+				pool.trackLease(this, conn);
 			} else if (connFactory != null) {
 				conn = connFactory.getConnection();
 			} else {
@@ -118,6 +119,8 @@ public class DbConn {
 	 * generated keys are returned in the resultset
 	 * (how generated keys are returned depends on the type of database,
 	 * e.g. mysql will return a column with the name "GENERATED_KEY").
+	 * <br>When the pool has a query time-out ({@link DbPool#queryTimeOutMs}), {@link #ps} is a proxy that starts 
+	 * the time-out when the statement is executed.
 	 */
 	public PreparedStatement setQuery(final String query, final int autoGeneratedKeys) throws SQLException {
 		getConnection();
@@ -126,6 +129,10 @@ public class DbConn {
 			ps = conn.prepareStatement(query, autoGeneratedKeys);
 		else 
 			ps = conn.prepareStatement(query);
+		if (pool != null) {
+			pool.trackStatement(conn, ps);
+			ps = pool.timeQueries(conn, ps);
+		}
 		return ps;
 	}
 
@@ -139,10 +146,12 @@ public class DbConn {
 	public NamedParameterStatement setNQuery(final String query, final int autoGeneratedKeys) throws SQLException {
 		getConnection();
 		if (ps != null || nps != null) closeQuery();
+		final Connection c = (pool == null ? conn : pool.timeQueries(conn));
 		if (autoGeneratedKeys > -1) 
-			nps = new NamedParameterStatement(conn, query, autoGeneratedKeys);
+			nps = new NamedParameterStatement(c, query, autoGeneratedKeys);
 		else 
-			nps = new NamedParameterStatement(conn, query);
+			nps = new NamedParameterStatement(c, query);
+		if (pool != null) pool.trackStatement(conn, nps.getStatement());
 		return nps;
 	}
 	
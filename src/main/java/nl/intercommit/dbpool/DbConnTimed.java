@@ -55,6 +55,7 @@ public class DbConnTimed extends DbConn {
 		if (conn == null) {
 			final long tstart = System.currentTimeMillis();
 			conn = pool.acquire();
+			pool.trackLease(this, conn);
 			connLeaseStart = System.currentTimeMillis();
 			final long waitTime = (connLeaseStart - tstart);
 			if (waitTime < connAcquireMinWaitTime) connAcquireMinWaitTime = waitTime;
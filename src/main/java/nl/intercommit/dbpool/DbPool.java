@@ -18,16 +18,31 @@
 */
 package nl.intercommit.dbpool;
 
+import java.lang.reflect.Method;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +56,7 @@ import org.slf4j.LoggerFactory;
  * By default, the pool does the following:
  * <br> - close and remove connections not used for 1 minute (see {@link DbPoolWatcher#maxIdleTimeMs})
  * <br> - validate connections before leasing them out (see {@link DbConnFactory#validate(Connection)}).
+ * Set a {@link ValidationPolicy} to skip the validation of connections released a moment ago.
  * If a connection is not valid, it is removed silently and another connection from the pool is fetched
  * (which is also validated etc.). 
  * <br> - warn if connections are not returned to the pool within 2 minutes 
@@ -54,14 +70,26 @@ import org.slf4j.LoggerFactory;
  * DbPool marks connections as dirty when {@link DbPoolWatcher#maxLeaseTimeMs} has expired. 
  * DbPool also uses this property internally to {@link #flush()} the connection pool.
  * <br><br>
- * Connections are created synchronous (one at a time).
- * The database server will appreciate this but bursts of connection-requests will experience delays.
- * If these delays are unwelcome, set the {@link #minSize} at a higher value.
+ * Connections are kept in a {@link ConnectionBag} which hands out connections without locking:
+ * a thread tends to get the connection it used last and released connections are handed 
+ * directly to threads waiting for a connection.
  * <br><br>
- * Any request for a connection will always result in trying to get a connection from the pool for 1 millisecond.
- * This is to prevent creation of connections that are only used once during bursts of connection-requests.
- * The downside is that creation of connections between {@link #minSize} and {@link #maxSize} 
- * will always experience a delay of 1 millisecond.   
+ * Connections are created in the background by at most {@link #maxConcurrentCreates} threads.
+ * A request for a connection that cannot be served by an idle connection asks for the creation of a new connection
+ * only when there are more threads waiting for a connection than connections being created
+ * (see {@link #isCreateAllowed()}). The request then waits for a connection: 
+ * released and new connections are handed directly to the thread that has been waiting the longest.
+ * A new connection that is not needed by any waiting thread is added to the pool as idle connection.
+ * When a connection is removed from the pool while threads are waiting, a new connection is created.
+ * <br>Large pools can divide the connections over {@link #stripes}.
+ * <br>Connections can be retired after a maximum life time or amount of leases 
+ * (see {@link #maxLifeTimeMs} and {@link #maxLeases}): a replacement connection is created before a connection is retired.
+ * A rolling flush ({@link #flushRolling()}) and a factory swap ({@link #swapFactory(DbConnFactory)}) 
+ * retire all connections this way, without the latency of creating all connections at once.
+ * <br><br>
+ * The pool can be used from virtual threads: the pool does not use <code>synchronized</code>
+ * (which pins a virtual thread to its carrier thread) but {@link ReentrantLock}s,
+ * and never holds a lock while a connection is created or closed.
  * 
  * @author frederikw
  *
@@ -72,10 +100,100 @@ public class DbPool {
 	
 	/** Minimum amount of connections in the pool. Default 1. */
 	public int minSize = 1;
+	/** 
+	 * Minimum amount of idle connections kept ready for new leases (while the pool is below {@link #maxSize}).
+	 * Default 0 (no minimum).
+	 * <br>Unlike {@link #minSize}, this keeps connections ready when all connections are leased 
+	 * so that a burst of requests does not wait for new connections to be created.
+	 * The {@link DbPoolWatcher} creates the idle connections in the background 
+	 * and does not remove idle connections at the minimum because of the idle time-out.
+	 */
+	public int minIdle;
+	/** 
+	 * If true, more idle connections are kept ready (on top of {@link #minIdle}) when the acquire rate is rising.
+	 * The used connections are expected to grow with the ratio between the short term and the long term average acquire rate
+	 * (see {@link #acquireRateShortMs} and {@link #acquireRateLongMs}). Default false.
+	 */
+	public boolean predictIdle;
+	/** Time constant of the short term (exponentially weighted moving) average acquire rate. Default 5 seconds. */
+	public long acquireRateShortMs = 5000L;
+	/** Time constant of the long term (exponentially weighted moving) average acquire rate. Default 1 minute. */
+	public long acquireRateLongMs = 60000L;
+	/** 
+	 * Connections older than this time are retired (closed and replaced), e.g. to release server-side session memory
+	 * or to stay below the connection age limit of a proxy. Default 0 (no maximum).
+	 * <br>A leased connection is retired when it is released, an idle connection by the {@link DbPoolWatcher}.
+	 * A replacement connection is created first, the pool can temporarily have more than {@link #maxSize} connections.
+	 */
+	public long maxLifeTimeMs;
+	/** Connections leased this many times are retired, see {@link #maxLifeTimeMs}. Default 0 (no maximum). */
+	public int maxLeases;
+	/** 
+	 * The maximum life time and maximum amount of leases of each connection are lowered by a random part of this fraction,
+	 * so that connections created at the same time are not all retired at the same time. Default 0.1
+	 */
+	public double retireJitter = 0.1;
+	/** Maximum amount of connections that are being replaced at the same time (see {@link #maxLifeTimeMs} and {@link #flushRolling()}). Default 2. */
+	public int maxConcurrentRetires = 2;
 	/** Maximum amount of connections in the pool. Default 10. */
 	public int maxSize = 10;
 	/** The maximum time it may take to get a connection from the pool. */
 	public long maxAcquireTimeMs = 50000L;
+	/** Maximum amount of connections that are created at the same time. Default 2. */
+	public int maxConcurrentCreates = 2;
+	/** 
+	 * Amount of stripes (sub-pools) the connections are divided over, see {@link StripedConnectionBag}.
+	 * Default 1 (no stripes). Consider using stripes for large pools (hundreds of connections) used by many threads.
+	 * Must be set before the pool is opened.
+	 */
+	public int stripes = 1;
+	/** 
+	 * If true, {@link #acquire()} returns a proxy for the database connection (see {@link ConnectionProxy}):
+	 * calling <code>close()</code> on the proxy releases the connection back to the pool
+	 * and using the proxy after it was released throws a SQLException. Default false.
+	 */
+	public boolean useProxy;
+	/** Amount of threads used for {@link #acquireAsync(long, long)} requests. Default 2. */
+	public int asyncThreads = 2;
+	/** Amount of threads closing connections in the background (see {@link ConnectionCloser}). Default 1. */
+	public int closerThreads = 1;
+	/** 
+	 * Maximum amount of connections waiting to be closed in the background. 
+	 * When the backlog is full, connections are aborted or closed by the calling thread. Default 1000.
+	 */
+	public int maxCloseBacklog = 1000;
+	/** When the pool is closed, the maximum time to wait for connections to close before they are aborted. Default 5 seconds. */
+	public long closeDrainTimeMs = 5000L;
+	/** 
+	 * Captures the call site of about 1 in every N acquired connections (1 captures all, 0 disables capturing). Default 0.
+	 * The {@link DbPoolWatcher} reports the captured call site when a lease expires, 
+	 * instead of the current stack trace of the thread leasing the connection.
+	 */
+	public int acquireSiteSampleRate;
+	/** Maximum amount of stack trace elements captured for a call site, see {@link #acquireSiteSampleRate}. Default 16. */
+	public int acquireSiteMaxDepth = 16;
+	/** 
+	 * If true, a leased connection is reclaimed when the object it was handed out with 
+	 * (a connection proxy, see {@link #useProxy}, or a {@link DbConn}) is garbage collected 
+	 * while the connection is still leased. Default false.
+	 * <br>A reclaimed connection used via a proxy is returned to the pool after the session is reset (see {@link SessionState}),
+	 * other reclaimed connections are closed (with a rollback) since their session state is unknown.
+	 * Unreferenced connections are detected by the {@link DbPoolWatcher} after a garbage collection.
+	 * <br>When using a {@link DbConn} without proxy, do not keep a reference to its connection when the DbConn is no longer used.
+	 */
+	public boolean reclaimUnreachable;
+	/** 
+	 * Statements running longer than this time are cancelled by the {@link StatementTimer}. Default 0 (no time-out).
+	 * <br>Applies to the statements prepared by a {@link DbConn} and to the statements executed via a connection proxy (see {@link #useProxy}).
+	 * The time-out starts when a statement is executed and stops when the execution has finished.
+	 * Use this instead of <code>Statement.setQueryTimeout</code>, for which some drivers start a timer per statement.
+	 */
+	public long queryTimeOutMs;
+	/** 
+	 * Network time-out set on new connections using <code>Connection.setNetworkTimeout</code> (Java 7 and higher).
+	 * Default 0 (not set).
+	 */
+	public int networkTimeOutMs;
 	/** 
 	 * Number of connections created.
 	 * <br>This should be equal to {@link DbPool#connectionsInvalid} + {@link DbPoolWatcher#evictedCount}
@@ -84,19 +202,85 @@ public class DbPool {
 	public AtomicLong connectionsCreated = new AtomicLong();
 	/** Number of connections removed from pool because they were invalid. */
 	public AtomicLong connectionsInvalid = new AtomicLong();
+	/** Number of times a connection was validated before it was leased. */
+	public AtomicLong validationsPerformed = new AtomicLong();
+	/** Number of times validation was skipped because the connection was used recently (see {@link ValidationPolicy}). */
+	public AtomicLong validationsSkipped = new AtomicLong();
+	/** Number of leased connections reclaimed because the application no longer referenced them (see {@link #reclaimUnreachable}). */
+	public AtomicLong connectionsReclaimed = new AtomicLong();
+	/** Number of statements cancelled because they ran longer than {@link #queryTimeOutMs}. */
+	public AtomicLong queryTimeOuts = new AtomicLong();
+	/** Number of connections leased. */
+	public AtomicLong connectionsAcquired = new AtomicLong();
+	/** Number of connections requested to keep idle connections ready, see {@link #minIdle} and {@link #predictIdle}. */
+	public AtomicLong connectionsCreatedIdle = new AtomicLong();
+	/** Number of connections retired, see {@link #maxLifeTimeMs} and {@link #maxLeases}. */
+	public AtomicLong connectionsRetired = new AtomicLong();
+	
+	/** The replacement of a connection to retire when no replacement could be requested. */
+	protected static final Future<PooledConnection> NO_REPLACEMENT = getNoReplacement();
+	
+	/** <code>Connection.setNetworkTimeout(Executor, int)</code>, null before Java 7. */
+	protected static final Method SET_NETWORK_TIMEOUT = getSetNetworkTimeoutMethod();
 	
 	/** All connections in the pool. */
 	protected Map<Connection, PooledConnection> connections = new ConcurrentHashMap<Connection, PooledConnection>();
-	/** A LIFO queue containing connections ready to be leased. */
-	protected LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
-	/** Manages permits for leasing connections. Permits are released evenly among requestors. */ 
-	protected Semaphore connLeaser = new Semaphore(0, true);
+	/** Contains all pooled connections and hands out idle connections. */
+	protected ConnectionBag bag = new ConnectionBag();
 	/** Amount of connections in the pool, use instead of connections.size() which is slow. */
 	protected final AtomicInteger connectionCount = new AtomicInteger(); 
+	/** Amount of connections being created. */
+	protected final AtomicInteger pendingCreates = new AtomicInteger(); 
+	/** Amount of connections for which a replacement was requested and that are not yet retired. */
+	protected final AtomicInteger retiringCount = new AtomicInteger(); 
+	/** The generation of new connections, connections of an older generation are retired (see {@link #flushRolling()}). */
+	protected volatile int generation;
+	/** Counts acquires for {@link #acquireSiteSampleRate}, not thread-safe on purpose (sampling does not have to be exact). */
+	protected int acquireSiteCounter;
+	/** Amount of threads that did not find an idle connection and are waiting for a connection. */
+	protected final AtomicInteger acquireWaiters = new AtomicInteger(); 
+	/** The amount of idle connections to keep ready, see {@link #maintainIdle()}. */
+	protected volatile int idleTarget;
+	/** Short and long term average acquire rate (per second), see {@link #predictIdle}. */
+	protected volatile double acquireRateShort, acquireRateLong;
+	/** Time and {@link #connectionsAcquired} at the last update of the average acquire rates, only used by the watcher. */
+	protected long acquireRateTime, acquireRateCount;
+	/** Guards the creation of connections (together with {@link #pendingCreates}) and the executors. */
+	protected final ReentrantLock poolLock = new ReentrantLock();
+	/** Allows only one thread to close the pool. */
+	protected final ReentrantLock closeLock = new ReentrantLock();
+	/** Creates connections in the background, see {@link #maxConcurrentCreates}. */
+	protected ThreadPoolExecutor creator;
+	/** Completes and times out {@link #acquireAsync(long, long)} requests, created when needed. */
+	protected ScheduledThreadPoolExecutor asyncExecutor;
+	/** Closes connections in the background, created when needed. */
+	protected ConnectionCloser closer;
+	/** The last error that occurred while creating a connection. */
+	protected volatile SQLException createError;
+	/** The time at which {@link #createError} occurred. */
+	protected volatile long createErrorTime;
 	/** The connection factory used to create new connections. */
-	protected DbConnFactory connFactory;
+	protected volatile DbConnFactory connFactory;
 	/** The pool watcher keeping a watch on idle connections and leased connections that do not return to the pool. */
 	protected DbPoolWatcher poolWatcher = new DbPoolWatcher(this);
+	/** Runs the {@link #poolWatcher} together with the watchers of other pools, if null the watcher runs in its own thread. */
+	protected DbPoolWatcherScheduler watcherScheduler;
+	/** Receives the lease references of connections no longer referenced by the application, see {@link #reclaimUnreachable}. */
+	protected final ReferenceQueue<Object> unreachableLeases = new ReferenceQueue<Object>();
+	/** Cancels statements after {@link #queryTimeOutMs}, the shared timer is used when not set. */
+	protected volatile StatementTimer statementTimer;
+	/** Aggregates lease statistics per call site, null if not used. */
+	protected volatile LeaseProfiler leaseProfiler;
+	/** Adjusts the minimum and maximum size of this pool, null if not used. */
+	protected volatile PoolSizeController sizeController;
+	/** The maximum size set by the {@link #sizeController}, -1 when not adjusted (see {@link #getEffectiveMaxSize()}). */
+	protected volatile int effectiveMaxSize = -1;
+	/** The minimum size set by the {@link #sizeController}, -1 when not adjusted (see {@link #getEffectiveMinSize()}). */
+	protected volatile int effectiveMinSize = -1;
+	/** Determines when connections are validated before they are leased. Default null: connections are always validated. */
+	protected ValidationPolicy validationPolicy;
+	/** Indicates if this pool was opened. */
+	protected volatile boolean opened;
 	/** Indicates if this pool was closed (in which it cannot be opened again). */
 	protected volatile boolean closed;
 	
@@ -106,7 +290,7 @@ public class DbPool {
 	public void setFactory(final DbConnFactory cf) { connFactory = cf; }
 	
 	/** 
-	 * Used to start the {@link #poolWatcher} (only when {@link DbPoolWatcher#maxLeaseTimeMs}/{@link DbPoolWatcher#maxIdleTimeMs} > 0)
+	 * Used to start the {@link #poolWatcher} (only when {@link DbPoolWatcher#maxLeaseTimeMs}/{@link DbPoolWatcher#maxIdleTimeMs}/{@link DbPoolWatcher#keepAliveIntervalMs} > 0)
 	 */
 	public void execute(final Runnable r, final boolean daemon) { 
 		
@@ -117,7 +301,7 @@ public class DbPool {
 
 	/**
 	 * Opens the database pool, initializes the minimum amount of connections and 
-	 * starts the connection time-out watcher if {@link DbPoolWatcher#maxLeaseTimeMs}/{@link DbPoolWatcher#maxIdleTimeMs} > 0. 
+	 * starts the connection time-out watcher if {@link DbPoolWatcher#maxLeaseTimeMs}/{@link DbPoolWatcher#maxIdleTimeMs}/{@link DbPoolWatcher#keepAliveIntervalMs} > 0. 
 	 * @param failOnConnectionError If true, a SQLException is thrown when the minimum amount 
 	 * of connections to the database could not be created (else an error is logged but the pool is opened).
 	 * @throws SQLException When the pool was previously closed 
@@ -127,38 +311,127 @@ public class DbPool {
 		
 		if (closed) throw new SQLException("Cannot re-use a closed database connection pool.");
 		if (connFactory == null) throw new SQLException("A database connection factory is required.");
+		if (stripes > 1 && bag.size() == 0) bag = new StripedConnectionBag(stripes);
+		final List<Future<PooledConnection>> newConnections = new ArrayList<Future<PooledConnection>>();
+		final int openSize = getEffectiveMinSize();
+		while (newConnections.size() < openSize) {
+			final Future<PooledConnection> f = requestNewConnection();
+			if (f == null) break;
+			newConnections.add(f);
+		}
 		int i = 0;
 		try { 
-			while (i < minSize) { 
-				release(acquire());
+			for (final Future<PooledConnection> f : newConnections) {
+				getNewConnection(f);
 				i++;
 			}
 		} catch (SQLException sqle) {
 			if (failOnConnectionError) {
 				log.error("Failed to open database pool with connection factory " + connFactory + ". SQL error: " + sqle);
 				PooledConnection[] pcs = connections.values().toArray(new PooledConnection[0]);
-				for (PooledConnection pc : pcs) removePooledConnection(pc);
+				for (PooledConnection pc : pcs) {
+					if (bag.reserve(pc)) removePooledConnection(pc);
+				}
 				throw sqle;
 			}
-			log.error("Could not initialize minimum amount of connections for database pool (acquired " + i + " of " + minSize +")." +
+			log.error("Could not initialize minimum amount of connections for database pool (acquired " + i + " of " + openSize +")." +
 					" Used connection factory: " + connFactory, sqle);
 		}
-		if (poolWatcher != null && (poolWatcher.maxLeaseTimeMs > 0L || poolWatcher.maxIdleTimeMs > 0L)) {
-			execute(poolWatcher, true);
+		if (poolWatcher != null && (poolWatcher.maxLeaseTimeMs > 0L || poolWatcher.maxIdleTimeMs > 0L 
+				|| poolWatcher.keepAliveIntervalMs > 0L || reclaimUnreachable || sizeController != null
+				|| minIdle > 0 || predictIdle || maxLifeTimeMs > 0L || maxLeases > 0)) {
+			if (watcherScheduler == null) {
+				execute(poolWatcher, true);
+			} else {
+				watcherScheduler.register(poolWatcher);
+			}
 		}
+		opened = true;
+	}
+	
+	/** @return True if this pool was opened (see {@link #open(boolean)}) and not closed. */
+	public boolean isOpen() { return (opened && !closed); }
+	
+	/** 
+	 * Sets a profiler that aggregates lease statistics per call site. 
+	 * Set {@link #acquireSiteSampleRate} to register leases with the site that acquired the connection.
+	 */
+	public void setLeaseProfiler(final LeaseProfiler leaseProfiler) { this.leaseProfiler = leaseProfiler; }
+	/** The lease profiler, null if not set. */
+	public LeaseProfiler getLeaseProfiler() { return leaseProfiler; }
+	
+	/** 
+	 * @return The call sites that held connections the longest (see {@link LeaseProfiler#getTopSites(int)}), 
+	 * an empty list if no lease profiler is set.
+	 */
+	public List<LeaseProfiler.Site> getTopLeaseSites(final int max) {
+		
+		final LeaseProfiler profiler = leaseProfiler;
+		return (profiler == null ? new ArrayList<LeaseProfiler.Site>() : profiler.getTopSites(max));
+	}
+	
+	/** 
+	 * Sets a controller that adjusts the effective minimum and maximum size based on the usage of the pool
+	 * (see {@link #getEffectiveMinSize()} and {@link #getEffectiveMaxSize()}), sizes adjusted by a previous controller are reset.
+	 * Must be set before the pool is opened (the controller is run by the {@link DbPoolWatcher}).
+	 */
+	public void setSizeController(final PoolSizeController sizeController) { 
+		
+		this.sizeController = sizeController;
+		effectiveMinSize = effectiveMaxSize = -1;
+	}
+	/** The size controller, null if not set. */
+	public PoolSizeController getSizeController() { return sizeController; }
+	
+	/** @return The maximum amount of connections: {@link #maxSize} unless adjusted by the {@link PoolSizeController}. */
+	public int getEffectiveMaxSize() {
+		
+		final int size = effectiveMaxSize;
+		return (size < 0 ? maxSize : size);
+	}
+	
+	/** @return The minimum amount of connections: {@link #minSize} unless adjusted by the {@link PoolSizeController}. */
+	public int getEffectiveMinSize() {
+		
+		final int size = effectiveMinSize;
+		return (size < 0 ? minSize : size);
+	}
+	
+	/** 
+	 * Sets the effective minimum and maximum size, called by the {@link PoolSizeController}. 
+	 * The configured {@link #minSize} and {@link #maxSize} are not changed.
+	 */
+	protected void setEffectiveSizes(final int min, final int max) {
+		
+		effectiveMaxSize = max;
+		effectiveMinSize = min;
 	}
 	
 	/** Sets a {@link DbPoolWatcher}. The watcher is started when the pool is opened (see {@link #open(boolean)}). */
 	public void setWatcher(DbPoolWatcher timeOutWatcher) { this.poolWatcher= timeOutWatcher ; }
 	/** The time-out watcher, if any (only available after pool is opened and maxLeaseTimeMs/maxIdleTimeMs > 0). */
 	public DbPoolWatcher getWatcher() { return poolWatcher; }
+	
+	/** 
+	 * Sets a scheduler that runs the {@link DbPoolWatcher} of this pool together with the watchers of other pools
+	 * (e.g. {@link DbPoolWatcherScheduler#getShared()}). Must be set before the pool is opened.
+	 * If not set, the watcher runs in its own thread.
+	 */
+	public void setWatcherScheduler(final DbPoolWatcherScheduler watcherScheduler) { this.watcherScheduler = watcherScheduler; }
+	/** The scheduler running the {@link DbPoolWatcher}, null if the watcher runs in its own thread. */
+	public DbPoolWatcherScheduler getWatcherScheduler() { return watcherScheduler; }
+	
+	/** Sets the {@link ValidationPolicy}, use null (the default) to always validate connections before they are leased. */
+	public void setValidationPolicy(final ValidationPolicy validationPolicy) { this.validationPolicy = validationPolicy; }
+	/** The validation policy, if any. */
+	public ValidationPolicy getValidationPolicy() { return validationPolicy; }
 
 	/** Amount of connections available for usage (i.e. ready to be acquired). */
-	public int getCountIdleConnections() { return connLeaser.availablePermits(); }
+	public int getCountIdleConnections() { return bag.getCount(PooledConnection.STATE_IDLE); }
 	/** Amount of connections in the pool. */
 	public int getCountOpenConnections() { return connectionCount.get(); }
 	/** Amount of connections being used (i.e. waiting for release). */
-	public int getCountUsedConnections() { return connectionCount.get() - connLeaser.availablePermits(); }
+	public int getCountUsedConnections() { return connectionCount.get() - getCountIdleConnections(); }
 	
 	/** Gets a connection from the pool within {@link #maxAcquireTimeMs}. Sets {@link DbPoolWatcher#maxLeaseTimeMs} for the pooled connection. */
 	public Connection acquire() throws SQLException { 
@@ -173,32 +446,28 @@ public class DbPool {
 	public Connection acquire(final long acquireTimeOutMs, final long leaseTimeOutMs) throws SQLException { 
 		
 		if (closed) throw new SQLException("Database pool is closed.");
+		final StackTraceElement[] acquireSite = sampleAcquireSite();
 		PooledConnection pc = null;
-		if (connectionCount.get() < minSize) {
-			pc = getNewConnection(leaseTimeOutMs);
-			if (pc != null) return pc.dbConn;
-		}
 		final long startTime = System.currentTimeMillis();
 		boolean retry;
 		do {
 			retry = false;
-			pc = getPooledConnection(1L);
-			if (pc == null && connectionCount.get() < maxSize) {
-				pc = getNewConnection(leaseTimeOutMs);
-				if (pc != null) return pc.dbConn;
-			}
+			pc = getPooledConnection(0L);
 			if (pc == null) {
-				pc = getPooledConnection(acquireTimeOutMs - System.currentTimeMillis() + startTime);
+				acquireWaiters.incrementAndGet();
+				try {
+					if (isCreateAllowed()) requestNewConnection();
+					pc = getPooledConnection(acquireTimeOutMs - System.currentTimeMillis() + startTime);
+				} finally {
+					acquireWaiters.decrementAndGet();
+				}
+				if (pc == null) {
+					if (closed) throw new SQLException("Database pool is closed.");
+					checkCreateError(startTime);
+				}
 			}
 			if (pc != null) {
-				if (!pc.isDirty()) {
-					try { connFactory.validate(pc.dbConn); }
-					catch (SQLException sqle) {
-						log.info("Database connection from pool is invalid: " + sqle);
-						pc.dirty();
-						connectionsInvalid.incrementAndGet();
-					}
-				}
+				if (!pc.isDirty()) validate(pc);
 				if (pc.isDirty()) {
 					removePooledConnection(pc);
 					pc = null;
@@ -207,33 +476,547 @@ public class DbPool {
 			}
 		} while (pc == null && (retry || System.currentTimeMillis() - startTime < acquireTimeOutMs));
 		if (pc == null) throw new SQLException("Failed to acquire database connection from pool within " + acquireTimeOutMs + " milliseconds.");
-		pc.setLeased(true, leaseTimeOutMs);
-		return pc.dbConn; 
+		leased(pc, leaseTimeOutMs, acquireSite, startTime);
+		return toLeasedConnection(pc); 
+	}
+	
+	/** 
+	 * Updates the lease-properties of the connection and registers the lease deadline with the {@link #poolWatcher}. 
+	 * @param acquireSite The call site that acquired the connection, null if not captured (see {@link #acquireSiteSampleRate}).
+	 * @param acquireStart The time the connection was requested.
+	 */
+	protected void leased(final PooledConnection pc, final long leaseTimeOutMs, final StackTraceElement[] acquireSite, final long acquireStart) {
+		
+		connectionsAcquired.incrementAndGet();
+		pc.leaseCount++;
+		final PoolSizeController sizer = sizeController;
+		if (sizer != null) sizer.acquired(System.currentTimeMillis() - acquireStart);
+		final LeaseProfiler profiler = leaseProfiler;
+		if (profiler == null) {
+			pc.setLeased(true, leaseTimeOutMs);
+			pc.leaseSite = null;
+		} else {
+			final LeaseProfiler.Site site = profiler.getSite(acquireSite);
+			pc.setLeased(true, profiler.getLeaseTimeOutMs(site, leaseTimeOutMs));
+			pc.leaseSite = site;
+		}
+		pc.acquireSite = acquireSite;
+		pc.leaseReady = true;
+		final DbPoolWatcher watcher = poolWatcher;
+		if (watcher != null) watcher.leased(pc);
+	}
+	
+	/** 
+	 * Captures the call site of the current thread (without the pool's own methods) when it is sampled.
+	 * @return null if the call site is not sampled, see {@link #acquireSiteSampleRate}.
+	 */
+	protected StackTraceElement[] sampleAcquireSite() {
+		
+		final int rate = acquireSiteSampleRate;
+		if (rate < 1 || (rate > 1 && ++acquireSiteCounter % rate != 0)) return null;
+		// Only the stack of the current thread is walked, other threads are not paused.
+		final StackTraceElement[] stack = new Throwable().getStackTrace();
+		int start = 0;
+		while (start < stack.length && isPoolFrame(stack[start])) start++;
+		final StackTraceElement[] site = new StackTraceElement[Math.max(0, Math.min(acquireSiteMaxDepth, stack.length - start))];
+		System.arraycopy(stack, start, site, 0, site.length);
+		return site;
+	}
+	
+	/** 
+	 * @return True if the stack trace element is a method of the pool used to acquire a connection.
+	 * The Hibernate connection provider is compared by name: Hibernate is not always on the classpath.
+	 */
+	protected boolean isPoolFrame(final StackTraceElement e) {
+		
+		final String className = e.getClassName();
+		return (className.equals(DbPool.class.getName()) || className.equals(getClass().getName())
+				|| className.equals(AcquireFuture.class.getName()) || className.equals(DbPoolDataSource.class.getName())
+				|| className.equals(DbConn.class.getName()) || className.equals(DbConnTimed.class.getName())
+				|| className.equals("nl.intercommit.dbpool.HibernateConnectionProvider"));
+	}
+	
+	/** Registers the idle deadline of a connection that was returned to the bag with the {@link #poolWatcher}. */
+	protected void idled(final PooledConnection pc) {
+		
+		final DbPoolWatcher watcher = poolWatcher;
+		if (watcher != null) watcher.idled(pc);
+	}
+	
+	/** @return The connection handed out for a leased connection: a proxy (see {@link #useProxy}) or the database connection. */
+	protected Connection toLeasedConnection(final PooledConnection pc) {
+		
+		if (!useProxy) return pc.dbConn;
+		final Connection proxy = ConnectionProxy.newProxy(this, pc);
+		if (reclaimUnreachable) pc.leaseRef = new LeaseReference(proxy, pc, unreachableLeases);
+		return proxy;
+	}
+	
+	/** A reference to the object a connection was handed out with, see {@link #reclaimUnreachable}. */
+	protected static class LeaseReference extends PhantomReference<Object> {
+		
+		protected final PooledConnection pc;
+		
+		public LeaseReference(final Object handle, final PooledConnection pc, final ReferenceQueue<Object> queue) {
+			super(handle, queue);
+			this.pc = pc;
+		}
+	}
+	
+	/** 
+	 * Reclaims the leased connection when the handle is garbage collected (only when {@link #reclaimUnreachable} is true).
+	 * Used by {@link DbConn} when no connection proxy is used. Has no effect when the connection is already tracked.
+	 * @param handle The object using the leased connection.
+	 * @param c The leased connection.
+	 */
+	public void trackLease(final Object handle, final Connection c) {
+		
+		if (!reclaimUnreachable || handle == null || c == null) return;
+		final ConnectionProxy proxy = ConnectionProxy.getHandler(c);
+		final PooledConnection pc = (proxy == null ? connections.get(c) : proxy.getPooledConnection());
+		if (pc == null || pc.leaseRef != null || !pc.isLeased()) return;
+		pc.leaseRef = new LeaseReference(handle, pc, unreachableLeases);
+	}
+	
+	/** 
+	 * Registers the statement in use for a leased connection, so that it can be cancelled 
+	 * when the lease expires (only when {@link DbPoolWatcher#cancelExpired} is true).
+	 * Used by {@link DbConn}, statements created via a connection proxy are registered when they are executed.
+	 */
+	public void trackStatement(final Connection c, final Statement statement) {
+		
+		final DbPoolWatcher watcher = poolWatcher;
+		if (watcher == null || !watcher.cancelExpired || c == null || ConnectionProxy.getHandler(c) != null) return;
+		final PooledConnection pc = connections.get(c);
+		if (pc != null && pc.isLeased()) pc.statement = statement;
+	}
+	
+	/** Sets the timer used to cancel statements after {@link #queryTimeOutMs}, by default {@link StatementTimer#getShared()} is used. */
+	public void setStatementTimer(final StatementTimer statementTimer) { this.statementTimer = statementTimer; }
+	
+	public StatementTimer getStatementTimer() {
+		
+		final StatementTimer timer = statementTimer;
+		return (timer == null ? StatementTimer.getShared() : timer);
+	}
+	
+	/** 
+	 * Used by {@link DbConn} to time the executions of a statement prepared for a leased connection, see {@link QueryTimeOutHandler}.
+	 * @return The statement if there is no query time-out or the connection is a proxy 
+	 * (statements of a proxy are already timed), else a statement proxy that starts the {@link #queryTimeOutMs} for each execution.
+	 */
+	public PreparedStatement timeQueries(final Connection c, final PreparedStatement ps) {
+		
+		if (queryTimeOutMs < 1L || c == null || ConnectionProxy.getHandler(c) != null) return ps;
+		return QueryTimeOutHandler.newProxy(this, ps);
+	}
+	
+	/** 
+	 * Same as {@link #timeQueries(Connection, PreparedStatement)} but for the statements prepared by the returned connection.
+	 * Used by {@link DbConn} to prepare a {@link NamedParameterStatement}.
+	 */
+	public Connection timeQueries(final Connection c) {
+		
+		if (queryTimeOutMs < 1L || c == null || ConnectionProxy.getHandler(c) != null) return c;
+		return QueryTimeOutHandler.newProxy(this, c);
+	}
+	
+	/** 
+	 * Starts the {@link #queryTimeOutMs} for a statement. 
+	 * @return null if there is no query time-out, else the time-out to cancel when the statement has finished.
+	 */
+	public StatementTimer.Timeout startQueryTimer(final Statement statement) {
+		
+		final long timeOut = queryTimeOutMs;
+		if (timeOut < 1L || statement == null) return null;
+		return getStatementTimer().schedule(this, statement, timeOut);
+	}
+	
+	protected static Method getSetNetworkTimeoutMethod() {
+		
+		try {
+			return Connection.class.getMethod("setNetworkTimeout", java.util.concurrent.Executor.class, int.class);
+		} catch (Exception ignored) {
+			return null;
+		}
+	}
+	
+	/** Sets the {@link #networkTimeOutMs} on a new connection, if supported. */
+	protected void setNetworkTimeOut(final Connection dbConn) {
+		
+		if (networkTimeOutMs < 1 || SET_NETWORK_TIMEOUT == null) return;
+		try {
+			SET_NETWORK_TIMEOUT.invoke(dbConn, getCloser().getExecutor(), networkTimeOutMs);
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) log.debug("Could not set network time-out for database connection " + dbConn + ": " + e);
+		}
+	}
+	
+	/** Releases leased connections that are no longer referenced by the application, called by the {@link DbPoolWatcher}. */
+	protected void reclaimLeaks() {
+		
+		Reference<?> ref;
+		while ((ref = unreachableLeases.poll()) != null) {
+			final PooledConnection pc = ((LeaseReference) ref).pc;
+			// The connection could have been released (and leased again) before the reference was queued.
+			if (pc.leaseRef != ref || !pc.isLeased()) continue;
+			final StringBuilder sb = new StringBuilder("Reclaiming leased database connection that is no longer referenced: ");
+			sb.append(pc.dbConn);
+			final StackTraceElement[] acquireSite = pc.acquireSite;
+			if (acquireSite != null && acquireSite.length > 0) sb.append(", acquired at ").append(acquireSite[0]);
+			log.warn(sb.toString());
+			if (pc.sessionState == null) pc.dirty();
+			release(pc);
+			connectionsReclaimed.incrementAndGet();
+		}
+	}
+	
+	/** 
+	 * Requests new connections in the background until the idle connections and the connections being created
+	 * reach {@link #minIdle} plus the predicted demand (see {@link #predictIdle}), called by the {@link DbPoolWatcher}.
+	 */
+	protected void maintainIdle() {
+		
+		if (minIdle < 1 && !predictIdle) return;
+		final int target = Math.max(0, minIdle) + (predictIdle ? getPredictedDemand(System.currentTimeMillis()) : 0);
+		idleTarget = target;
+		int missing = target - getCountIdleConnections() - pendingCreates.get();
+		while (missing-- > 0 && !closed) {
+			if (requestNewConnection() == null) break;
+			connectionsCreatedIdle.incrementAndGet();
+		}
+	}
+	
+	/** 
+	 * Updates the short and long term average acquire rates.
+	 * @return The expected increase of used connections: 
+	 * the used connections times the relative increase of the short term rate over the long term rate.
+	 */
+	protected int getPredictedDemand(final long now) {
+		
+		final long acquired = connectionsAcquired.get();
+		final long elapsed = now - acquireRateTime;
+		if (acquireRateTime == 0L || elapsed < 1L) {
+			if (acquireRateTime == 0L) {
+				acquireRateTime = now;
+				acquireRateCount = acquired;
+			}
+			return 0;
+		}
+		final double rate = (acquired - acquireRateCount) * 1000.0 / elapsed;
+		acquireRateTime = now;
+		acquireRateCount = acquired;
+		if (acquireRateLong <= 0.0 && acquireRateShort <= 0.0) {
+			// Start both averages at the first measured rate.
+			acquireRateShort = acquireRateLong = rate;
+		} else {
+			acquireRateShort += (rate - acquireRateShort) * (1.0 - Math.exp(-elapsed / (double) Math.max(1L, acquireRateShortMs)));
+			acquireRateLong += (rate - acquireRateLong) * (1.0 - Math.exp(-elapsed / (double) Math.max(1L, acquireRateLongMs)));
+		}
+		final double shortRate = acquireRateShort, longRate = acquireRateLong;
+		if (shortRate <= longRate || longRate <= 0.0) return 0;
+		return Math.min(getEffectiveMaxSize(), (int) Math.ceil(getCountUsedConnections() * (shortRate / longRate - 1.0)));
+	}
+	
+	/** 
+	 * @return True if the connection has reached its maximum life time or amount of leases (see {@link #maxLifeTimeMs})
+	 * or was created before a rolling flush (see {@link #flushRolling()}).
+	 */
+	protected boolean isRetireDue(final PooledConnection pc, final long now) {
+		
+		if (pc.generation < generation) return true;
+		if (maxLifeTimeMs < 1L && maxLeases < 1) return false;
+		final double f = 1.0 - Math.max(0.0, Math.min(1.0, retireJitter)) * pc.retireJitter;
+		if (maxLifeTimeMs > 0L && now - pc.createdTime >= (long) (maxLifeTimeMs * f)) return true;
+		return (maxLeases > 0 && pc.leaseCount >= Math.max(1, (int) (maxLeases * f)));
+	}
+	
+	/**
+	 * Requests a replacement for a connection that is to be retired, if not already requested.
+	 * No replacement is requested when {@link #maxConcurrentRetires} connections are already being replaced.
+	 * @return True if the replacement was created (or could not be requested) and the connection can be retired.
+	 */
+	protected boolean prepareRetire(final PooledConnection pc) {
+		
+		Future<PooledConnection> f = pc.replacement;
+		if (f == null) {
+			if (retiringCount.get() >= Math.max(1, maxConcurrentRetires)) return false;
+			if (!pc.retiring.compareAndSet(false, true)) return false;
+			retiringCount.incrementAndGet();
+			f = requestNewConnection();
+			if (f == null) f = NO_REPLACEMENT;
+			pc.replacement = f;
+		}
+		return f.isDone();
+	}
+	
+	/** Stops counting the connection as retiring, called when the connection is removed from the pool. */
+	protected void endRetiring(final PooledConnection pc) {
+		if (pc.retiring.compareAndSet(true, false)) retiringCount.decrementAndGet();
+	}
+	
+	/** 
+	 * Requests replacements for connections that reached their maximum life time or amount of leases 
+	 * and retires idle connections of which the replacement was created, called by the {@link DbPoolWatcher}.
+	 * Leased connections are retired when they are released.
+	 */
+	protected void retireConnections() {
+		
+		if (maxLifeTimeMs < 1L && maxLeases < 1 && generation == 0) return;
+		final long now = System.currentTimeMillis();
+		for (final PooledConnection pc : bag.values()) {
+			final int state = pc.getState();
+			if ((state != PooledConnection.STATE_IDLE && state != PooledConnection.STATE_LEASED) || !isRetireDue(pc, now)) continue;
+			if (!prepareRetire(pc) || state != PooledConnection.STATE_IDLE) continue;
+			// Claim the idle connection, this fails when the connection just got leased.
+			if (!bag.reserve(pc)) continue;
+			if (log.isDebugEnabled()) log.debug("Retiring idle database connection " + pc.dbConn + " created " + (now - pc.createdTime) + " ms ago.");
+			removePooledConnection(pc);
+			connectionsRetired.incrementAndGet();
+		}
+	}
+	
+	protected static Future<PooledConnection> getNoReplacement() {
+		
+		final FutureTask<PooledConnection> f = new FutureTask<PooledConnection>(new Callable<PooledConnection>() {
+			@Override public PooledConnection call() { return null; }
+		});
+		f.run();
+		return f;
+	}
+	
+	/** @return True if the {@link #validationPolicy} requires validation of the connection (or there is no policy). */
+	protected boolean isValidationRequired(final PooledConnection pc) {
+		
+		final ValidationPolicy policy = validationPolicy;
+		return (policy == null || policy.isValidationRequired(pc));
 	}
 	
-	protected PooledConnection getNewConnection(final long leaseTimeOutMs) throws SQLException {
+	/** 
+	 * Validates the connection if required by the {@link #validationPolicy}. 
+	 * Marks the connection as dirty when it is invalid. 
+	 */
+	protected void validate(final PooledConnection pc) {
+		
+		if (!isValidationRequired(pc)) {
+			validationsSkipped.incrementAndGet();
+			return;
+		}
+		validationsPerformed.incrementAndGet();
+		pc.leaseError = false;
+		final ValidationPolicy policy = validationPolicy;
+		boolean valid = false;
+		try { 
+			getFactory(pc).validate(pc.dbConn);
+			pc.lastValidated = System.currentTimeMillis();
+			valid = true;
+		} catch (SQLException sqle) {
+			log.info("Database connection from pool is invalid: " + sqle);
+			pc.dirty();
+			connectionsInvalid.incrementAndGet();
+		}
+		if (policy != null) policy.validated(pc, valid);
+	}
+	
+	/** Same as {@link #acquireAsync(long, long)} using {@link #maxAcquireTimeMs}. */
+	public AcquireFuture acquireAsync() { 
+		return acquireAsync(maxAcquireTimeMs); 
+	}
+	/** Same as {@link #acquireAsync(long, long)} using {@link DbPoolWatcher#maxLeaseTimeMs}. */
+	public AcquireFuture acquireAsync(final long acquireTimeOutMs) { 
+		return acquireAsync(acquireTimeOutMs, (poolWatcher == null ? 0L : poolWatcher.maxLeaseTimeMs)); 
+	}
+	
+	/** 
+	 * Requests a connection from the pool without blocking the current thread, see {@link AcquireFuture}.
+	 * The request fails when no connection is available within acquireTimeOutMs.
+	 * As with {@link #acquire(long, long)}, an acquireTimeOutMs of 0 or less does not wait:
+	 * the request fails immediately when no idle connection is available.
+	 * Sets leaseTimeOutMs for the pooled connection.
+	 */
+	public AcquireFuture acquireAsync(final long acquireTimeOutMs, final long leaseTimeOutMs) {
+		
+		final AcquireFuture f = new AcquireFuture(this, acquireTimeOutMs, leaseTimeOutMs);
+		if (closed) {
+			f.fail(new SQLException("Database pool is closed."));
+		} else {
+			f.start();
+		}
+		return f;
+	}
+	
+	/** The executor for {@link #acquireAsync(long, long)} requests, see also {@link #asyncThreads}. */
+	protected ScheduledThreadPoolExecutor getAsyncExecutor() {
+		
+		poolLock.lock();
+		try {
+			if (asyncExecutor == null) {
+				if (closed) throw new RejectedExecutionException("Database pool is closed.");
+				asyncExecutor = new ScheduledThreadPoolExecutor(Math.max(1, asyncThreads), 
+						new DbPoolThreadFactory("DbPoolAsync[" + connFactory + "]", true));
+				// Cancelled time-outs should not stay in the queue (Java 7 and higher).
+				try {
+					asyncExecutor.getClass().getMethod("setRemoveOnCancelPolicy", boolean.class).invoke(asyncExecutor, true);
+				} catch (Exception ignored) {}
+			}
+			return asyncExecutor;
+		} finally {
+			poolLock.unlock();
+		}
+	}
+	
+	/** 
+	 * Determines if a new connection should be created for a thread that is about to wait for a connection.
+	 * A new connection is created when the pool is below {@link #minSize}
+	 * or when the waiting threads (including the current thread) outnumber the connections being created.
+	 */
+	protected boolean isCreateAllowed() {
+		
+		final int pending = pendingCreates.get();
+		return (connectionCount.get() + pending < getEffectiveMinSize() || acquireWaiters.get() > pending);
+	}
+	
+	/** Requests new connections until there are as many connections being created as there are threads waiting. */
+	protected void requestConnectionsForWaiters() {
+		
+		while (acquireWaiters.get() > pendingCreates.get()) {
+			if (requestNewConnection() == null) break;
+		}
+	}
+	
+	/**
+	 * Creates a new connection in the background when there is room in the pool
+	 * (the connections that are replaced, see {@link #prepareRetire(PooledConnection)}, do not count).
+	 * The new connection is handed to the thread that has been waiting the longest or, 
+	 * if no thread is waiting, added to the pool as idle connection.
+	 * @return null if the pool is full (or closed), else the result of {@link #createConnection()}.
+	 */
+	protected Future<PooledConnection> requestNewConnection() {
+		
+		final ThreadPoolExecutor executor;
+		poolLock.lock();
+		try {
+			if (closed || connectionCount.get() + pendingCreates.get() >= getEffectiveMaxSize() + retiringCount.get()) return null;
+			if (creator == null) creator = createCreator();
+			executor = creator;
+			pendingCreates.incrementAndGet();
+		} finally {
+			poolLock.unlock();
+		}
+		try {
+			return executor.submit(new Callable<PooledConnection>() {
+				@Override public PooledConnection call() throws SQLException { 
+					return createConnection(); 
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			pendingCreates.decrementAndGet();
+			return null;
+		}
+	}
+	
+	/** The closer used to close connections in the background, created when first used. */
+	public ConnectionCloser getCloser() {
+		
+		poolLock.lock();
+		try {
+			if (closer == null) closer = new ConnectionCloser(connFactory, closerThreads, maxCloseBacklog);
+			return closer;
+		} finally {
+			poolLock.unlock();
+		}
+	}
+	
+	/** Creates the executor for {@link #requestNewConnection()}, see also {@link #maxConcurrentCreates}. */
+	protected ThreadPoolExecutor createCreator() {
+		
+		final int threads = Math.max(1, maxConcurrentCreates);
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 
+				60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+				new DbPoolThreadFactory("DbPoolCreator[" + connFactory + "]", true));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/** 
+	 * Creates a new connection and adds it to the pool (called by the {@link #creator}).
+	 * When creation fails, the thread that has been waiting the longest is signalled (see {@link #checkCreateError(long)}). 
+	 * @return null when the pool was closed.
+	 */
+	protected PooledConnection createConnection() throws SQLException {
 		
 		PooledConnection pc = null;
-		synchronized(connectionCount) {
-			if (connectionCount.get() < maxSize) {
-				pc = new PooledConnection(connFactory.getConnection(), leaseTimeOutMs);
-				connections.put(pc.dbConn, pc);
-				connectionCount.incrementAndGet();
-				connectionsCreated.incrementAndGet();
-				if (log.isDebugEnabled()) log.debug("Created database connection " + pc.dbConn + " for " + connFactory + ", total connections: " + connectionCount.get());
+		try {
+			// A connection created by a factory that was swapped belongs to the old generation.
+			final int connGeneration = generation;
+			final DbConnFactory factory = connFactory;
+			final Connection dbConn = factory.getConnection();
+			if (closed) {
+				getCloser().close(factory, dbConn);
+				return null;
 			}
+			setNetworkTimeOut(dbConn);
+			pc = new PooledConnection(dbConn, 0L);
+			pc.generation = connGeneration;
+			pc.factory = factory;
+			pc.setLeased(false, 0L);
+			connections.put(pc.dbConn, pc);
+			connectionCount.incrementAndGet();
+			connectionsCreated.incrementAndGet();
+			if (log.isDebugEnabled()) log.debug("Created database connection " + pc.dbConn + " for " + connFactory + ", total connections: " + connectionCount.get());
+			pc.setState(PooledConnection.STATE_IDLE);
+			bag.add(pc);
+			idled(pc);
+		} catch (SQLException sqle) {
+			createError = sqle;
+			createErrorTime = System.currentTimeMillis();
+			bag.signalWaiter();
+			throw sqle;
+		} catch (RuntimeException re) {
+			createError = new SQLException("Failed to create database connection.", re);
+			createErrorTime = System.currentTimeMillis();
+			bag.signalWaiter();
+			throw re;
+		} finally {
+			pendingCreates.decrementAndGet();
 		}
+		// Another thread could have taken the new connection before a waiting thread got it.
+		requestConnectionsForWaiters();
 		return pc;
 	}
 	
+	/** Waits for the connection requested via {@link #requestNewConnection()} to be created. */
+	protected PooledConnection getNewConnection(final Future<PooledConnection> f) throws SQLException {
+		
+		try {
+			return f.get();
+		} catch (InterruptedException ie) {
+			throw new SQLException("Interrupted while waiting for a new database connection.", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof SQLException) throw (SQLException) ee.getCause();
+			throw new SQLException("Failed to create database connection.", ee.getCause());
+		}
+	}
+	
+	/** Throws the error that occurred while creating a connection after startTime, if any. */
+	protected void checkCreateError(final long startTime) throws SQLException {
+		
+		if (createErrorTime < startTime) return;
+		final SQLException sqle = createError;
+		if (sqle != null) throw new SQLException("Failed to create database connection: " + sqle, sqle);
+	}
+	
+	/** 
+	 * Gets an idle connection from the pool. 
+	 * @param waitTimeMs The maximum time to wait for a connection to be released, 0 to only check for idle connections.
+	 * @return null if no connection is available or a waiting thread was signalled to create a new connection.
+	 */
 	protected PooledConnection getPooledConnection(final long waitTimeMs) throws SQLException {
 		
-		if (waitTimeMs < 1L) return null;
+		if (waitTimeMs < 0L) return null;
 		PooledConnection pc = null;
 		try { 
-			if (connLeaser.tryAcquire(waitTimeMs, TimeUnit.MILLISECONDS)) {
-				pc = idleConnections.poll();
-			}
+			pc = bag.borrow(waitTimeMs);
 		} catch (InterruptedException ie) {
 			throw new SQLException("Interrupted while trying to acquire a database connection.", ie);
 		}
@@ -244,16 +1027,46 @@ public class DbPool {
 	protected void removePooledConnection(final PooledConnection pc) {
 		
 		if (!pc.isDirty()) pc.dirty();
+		bag.remove(pc);
 		connections.remove(pc.dbConn);
-		close(pc.dbConn, true);
+		close(pc);
+		// A retiring connection leaves room for its replacement until it is no longer counted.
+		endRetiring(pc);
+		requestConnectionsForWaiters();
+	}
+	
+	/** 
+	 * Closes the pooled connection in the background (see {@link #getCloser()}). If the {@link SessionState} is tracked, 
+	 * a rollback is only done when a transaction is pending. 
+	 */
+	protected void close(final PooledConnection pc) {
+		
+		final SessionState session = pc.sessionState;
+		if (session == null) {
+			close(getFactory(pc), pc.dbConn, true);
+			return;
+		}
+		getCloser().close(getFactory(pc), pc.dbConn, session.isTransactionPending());
+		connectionCount.decrementAndGet();
+		if (log.isDebugEnabled()) log.debug("Closing database connection " + pc.dbConn + " for " + connFactory + ", remaining connections: " + connectionCount.get());
 	}
 	
-	/** Uses the factory to close the given database connection. */
-	protected void close(final Connection conn, final boolean wasPooled) {
+	/** Closes the given database connection in the background (see {@link #getCloser()}). */
+	protected void close(final Connection conn, final boolean wasPooled) { close(connFactory, conn, wasPooled); }
 
-		connFactory.close(conn);
+	/** Closes the given database connection in the background using the given factory (see {@link #getCloser()}). */
+	protected void close(final DbConnFactory factory, final Connection conn, final boolean wasPooled) {
+
+		getCloser().close(factory, conn);
 		if (wasPooled) connectionCount.decrementAndGet();
-		if (log.isDebugEnabled()) log.debug("Closed database connection " + conn + " for " + connFactory + ", remaining connections: " + connectionCount.get());
+		if (log.isDebugEnabled()) log.debug("Closing database connection " + conn + " for " + factory + ", remaining connections: " + connectionCount.get());
+	}
+	
+	/** @return The factory that created the pooled connection, used to validate and close the connection. */
+	protected DbConnFactory getFactory(final PooledConnection pc) {
+		
+		final DbConnFactory factory = pc.factory;
+		return (factory == null ? connFactory : factory);
 	}
 	
 	/** 
@@ -266,26 +1079,92 @@ public class DbPool {
 	 * or is not part of this pool, a warning is logged: 
 	 * <br>"Cannot release a database connection that is not in the pool".
 	 * In this case, the connection will only be closed. 
+	 * <br>A connection proxy (see {@link #useProxy}) carries the pooled connection, 
+	 * so no lookup is needed to release the proxy.
 	 */
 	public void release(final Connection dbConn) {
 		
 		if (dbConn == null) return;
-		PooledConnection pc = connections.get(dbConn);
+		final ConnectionProxy proxy = ConnectionProxy.getHandler(dbConn);
+		PooledConnection pc;
+		if (proxy == null) {
+			pc = connections.get(dbConn);
+			// Session changes made without a proxy are not tracked.
+			if (pc != null) pc.sessionState = null;
+		} else {
+			if (!proxy.release()) {
+				log.warn("Database connection is already released: " + dbConn);
+				return;
+			}
+			pc = proxy.getPooledConnection();
+			// A leased connection is only removed from the bag when it is evicted.
+			if (pc.getState() == PooledConnection.STATE_REMOVED 
+					|| (closed && !connections.containsKey(pc.dbConn))) {
+				pc = null;
+			}
+		}
 		if (pc == null) {
 			log.warn("Cannot release a database connection that is not in the pool: " + dbConn);
-			close(dbConn, false);
+			if (proxy == null) {
+				close(dbConn, false);
+			} else {
+				close(getFactory(proxy.getPooledConnection()), proxy.getPooledConnection().dbConn, false);
+			}
 			return;
 		}
+		release(pc);
+	}
+	
+	/** Returns a leased connection to the pool or, when it is dirty, removes the connection from the pool. */
+	protected void release(final PooledConnection pc) {
+		
 		if (!pc.isLeased()) {
 			log.warn("Database connection is already released: " + pc.dbConn);
 			return;
 		}
+		final LeaseProfiler profiler = leaseProfiler;
+		if (profiler != null) profiler.released(pc);
+		final Reference<?> ref = pc.leaseRef;
+		if (ref != null) {
+			pc.leaseRef = null;
+			ref.clear();
+		}
+		pc.statement = null;
+		final int escalation = pc.escalation;
+		if (escalation != DbPoolWatcher.ESCALATION_NONE) {
+			pc.escalation = DbPoolWatcher.ESCALATION_NONE;
+			final DbPoolWatcher watcher = poolWatcher;
+			if (watcher != null) watcher.releasedAfterEscalation(escalation);
+		}
 		pc.setLeased(false, 0L);
+		if (!pc.isDirty() && isRetireDue(pc, System.currentTimeMillis()) && prepareRetire(pc)) {
+			connectionsRetired.incrementAndGet();
+			if (log.isDebugEnabled()) log.debug("Retiring database connection " + pc.dbConn + " after " + pc.leaseCount + " leases.");
+			pc.dirty();
+		}
+		if (!pc.isDirty()) resetSession(pc);
 		if (pc.isDirty()) {
 			removePooledConnection(pc);
 		} else {
-			idleConnections.addFirst(pc);
-			connLeaser.release();
+			bag.requite(pc);
+			idled(pc);
+		}
+	}
+	
+	/** 
+	 * Restores the session properties changed during the lease and rolls back a pending transaction 
+	 * (only for connections used via a {@link ConnectionProxy}, see {@link SessionState}).
+	 * Marks the connection as dirty when the reset fails. 
+	 */
+	protected void resetSession(final PooledConnection pc) {
+		
+		final SessionState session = pc.sessionState;
+		if (session == null) return;
+		try {
+			session.reset();
+		} catch (SQLException sqle) {
+			log.info("Failed to reset database connection released to the pool: " + sqle);
+			pc.dirty();
 		}
 	}
 	
@@ -297,7 +1176,8 @@ public class DbPool {
 	 */
 	public boolean setDirty(final Connection dbConn) {
 		
-		PooledConnection pc = connections.get(dbConn);
+		final ConnectionProxy proxy = ConnectionProxy.getHandler(dbConn);
+		final PooledConnection pc = (proxy == null ? connections.get(dbConn) : proxy.getPooledConnection());
 		if (pc == null) return false;
 		pc.dirty();
 		return true;
@@ -311,6 +1191,46 @@ public class DbPool {
 		while (pcs.hasNext()) pcs.next().dirty();
 	}
 	
+	/** 
+	 * Replaces all connections gradually: connections in the pool are retired like connections that reached 
+	 * their maximum life time (see {@link #maxLifeTimeMs}). At most {@link #maxConcurrentRetires} connections are replaced
+	 * at the same time and a connection is only retired after its replacement was created.
+	 * <br>Idle connections are retired by the {@link DbPoolWatcher} (which must be running), 
+	 * leased connections when they are released.
+	 */
+	public void flushRolling() {
+		
+		poolLock.lock();
+		try {
+			generation++;
+		} finally {
+			poolLock.unlock();
+		}
+		log.info("Replacing all " + connectionCount.get() + " database connection(s) of pool " + connFactory);
+		retireConnections();
+	}
+	
+	/**
+	 * Replaces the connection factory of an open pool (e.g. with a new URL or credentials) 
+	 * and gradually replaces the connections created by the old factory, see {@link #flushRolling()}.
+	 * <br>The remaining connections of the old factory are still validated and closed by the old factory.
+	 */
+	public void swapFactory(final DbConnFactory factory) {
+		
+		if (factory == null) throw new IllegalArgumentException("A database connection factory is required.");
+		final DbConnFactory old = connFactory;
+		poolLock.lock();
+		try {
+			connFactory = factory;
+			generation++;
+		} finally {
+			poolLock.unlock();
+		}
+		createError = null;
+		log.info("Replacing all " + connectionCount.get() + " database connection(s) of pool " + old + " with connections from " + factory);
+		retireConnections();
+	}
+	
 	/**
 	 * Marks this pool as closed, no more connections will be provided.
 	 * Call {@link #close()} to close all open connections.
@@ -318,20 +1238,35 @@ public class DbPool {
 	public void closed() { closed = true; }
 	
 	/**
-	 * Closes this pool and immediately closes all connections (blocks until all connections are closed).
+	 * Closes this pool and immediately closes all connections (blocks until all connections are closed
+	 * or aborted after {@link #closeDrainTimeMs}).
 	 */
-	public synchronized void close() {
+	public void close() {
 		
-		if (!closed) closed();
-		if (poolWatcher != null) poolWatcher.stop();
-		Iterator<PooledConnection> pcs = connections.values().iterator();
-		int closedConnections = 0;
-		while (pcs.hasNext()) {
-			close(pcs.next().dbConn, true);
-			closedConnections++;
+		closeLock.lock();
+		try {
+			if (!closed) closed();
+			if (poolWatcher != null) poolWatcher.stop();
+			poolLock.lock();
+			try {
+				if (creator != null) creator.shutdownNow();
+				if (asyncExecutor != null) asyncExecutor.shutdownNow();
+			} finally {
+				poolLock.unlock();
+			}
+			bag.signalAllWaiters();
+			Iterator<PooledConnection> pcs = connections.values().iterator();
+			int closedConnections = 0;
+			while (pcs.hasNext()) {
+				close(pcs.next());
+				closedConnections++;
+			}
+			connections.clear();
+			getCloser().shutdown(closeDrainTimeMs);
+			log.info("Closed " + closedConnections + " database connection(s) for pool " + connFactory + ", total connections created: " + connectionsCreated.get());
+		} finally {
+			closeLock.unlock();
 		}
-		connections.clear();
-		log.info("Closed " + closedConnections + " database connection(s) for pool " + connFactory + ", total connections created: " + connectionsCreated.get());
 	}
 	
 	@Override
@@ -357,15 +1292,58 @@ public class DbPool {
 		sb.append(lf).append("Used connections: ").append(getCountUsedConnections());
 		sb.append(lf).append("Open connections: ").append(getCountOpenConnections())
 		.append(" (minimum: ").append(minSize).append(", maximum: ").append(maxSize).append(")").append(lf);
+		final PoolSizeController sizer = sizeController;
+		if (sizer != null) {
+			sb.append("Adjusted size: minimum ").append(getEffectiveMinSize()).append(", maximum ").append(getEffectiveMaxSize()).append(lf);
+			sb.append("Size adjustments: ").append(sizer.growCount).append(" grown, ").append(sizer.shrinkCount).append(" shrunk")
+			.append(" (maximum between ").append(sizer.minMaxSize).append(" and ").append(sizer.maxMaxSize)
+			.append(", minimum between ").append(sizer.minMinSize).append(" and ").append(sizer.maxMinSize).append(")");
+			final PoolSizeController.Decision d = sizer.getLastDecision();
+			if (d != null) sb.append(lf).append("Last size adjustment: ").append(d);
+			sb.append(lf);
+		}
 		
 		sb.append(lf).append("Created connections       : ").append(connectionsCreated.get());
+		if (minIdle > 0 || predictIdle) {
+			sb.append(lf).append("Created idle connections  : ").append(connectionsCreatedIdle.get())
+			.append(" (minimum idle: ").append(minIdle).append(", idle target: ").append(idleTarget);
+			if (predictIdle) {
+				sb.append(", acquires per second: ").append(Math.round(acquireRateShort * 10.0) / 10.0)
+				.append(" short term, ").append(Math.round(acquireRateLong * 10.0) / 10.0).append(" long term");
+			}
+			sb.append(")");
+		}
 		sb.append(lf).append("Closed invalid connections: ").append(connectionsInvalid.get());
+		sb.append(lf).append("Validations performed     : ").append(validationsPerformed.get());
+		if (maxLifeTimeMs > 0L || maxLeases > 0) {
+			sb.append(lf).append("Retired connections       : ").append(connectionsRetired.get())
+			.append(" (maximum life time: ").append(maxLifeTimeMs).append(", maximum leases: ").append(maxLeases).append(")");
+		}
+		if (reclaimUnreachable) {
+			sb.append(lf).append("Reclaimed connections     : ").append(connectionsReclaimed.get());
+		}
+		if (queryTimeOutMs > 0L) {
+			sb.append(lf).append("Query time-outs           : ").append(queryTimeOuts.get())
+			.append(" (query time-out: ").append(queryTimeOutMs).append(")");
+		}
+		if (validationPolicy != null) {
+			sb.append(lf).append("Validations skipped       : ").append(validationsSkipped.get())
+			.append(" (trust time: ").append(validationPolicy.getTrustTimeMs()).append(")");
+		}
 		if (poolWatcher != null) {
 			if (poolWatcher.maxIdleTimeMs == 0L) {
 				sb.append(lf).append("Not watching idle connections.");
 			} else {
 				sb.append(lf).append("Closed idle connections   : ").append(poolWatcher.idledCount)
 				.append(" (maximum idle time: ").append(poolWatcher.maxIdleTimeMs).append(")");
+				if (poolWatcher.idleCloseBatchSize > 0) {
+					sb.append(lf).append("Closing at most ").append(poolWatcher.idleCloseBatchSize)
+					.append(" idle connection(s) per ").append(poolWatcher.idleCloseIntervalMs).append(" ms.");
+				}
+				if (poolWatcher.peakWindowMs > 0L) {
+					sb.append(lf).append("Keeping ").append(poolWatcher.peakKeepSize).append(" connections for peak usage during the last ")
+					.append(poolWatcher.peakWindowMs).append(" ms (buffer: ").append(poolWatcher.peakBuffer).append(")");
+				}
 			}
 			if (poolWatcher.maxLeaseTimeMs == 0L) {
 				sb.append(lf).append("Not watching for expired leases.");
@@ -373,6 +1351,12 @@ public class DbPool {
 				sb.append(lf).append("Number of expired leases  : ").append(poolWatcher.expiredCount)
 				.append(" (maximum lease time: ").append(poolWatcher.maxLeaseTimeMs).append(", interrupt expired connections: ")
 				.append(poolWatcher.interrupt).append(")");
+				if (poolWatcher.cancelExpired) {
+					sb.append(lf).append("Cancelled statements      : ").append(poolWatcher.cancelledCount)
+					.append(" (released after cancel: ").append(poolWatcher.releasedAfterCancelCount.get()).append(")");
+					sb.append(lf).append("Aborted connections       : ").append(poolWatcher.abortedCount)
+					.append(" (released after abort: ").append(poolWatcher.releasedAfterAbortCount.get()).append(")");
+				}
 				if (poolWatcher.evictThreshold == 0) {
 					sb.append(lf).append("Not evicting connections.");
 				} else {
@@ -383,10 +1367,36 @@ public class DbPool {
 					.append(poolWatcher.evictThreshold);
 				}
 			}
+			if (poolWatcher.keepAliveIntervalMs > 0L) {
+				sb.append(lf).append("Keepalive validations    : ").append(poolWatcher.keepAliveCount.get())
+				.append(" (failed: ").append(poolWatcher.keepAliveFailedCount.get())
+				.append(", keepalive interval: ").append(poolWatcher.keepAliveIntervalMs).append(")");
+			}
 			sb.append(lf).append("Time-out watch interval   : ").append(poolWatcher.timeOutWatchIntervalMs);
+			if (watcherScheduler != null) {
+				sb.append(" (shared scheduler for ").append(watcherScheduler.getWatcherCount()).append(" pools)");
+			}
 		}
 		sb.append(lf);
 		sb.append(lf).append("Maximum connection acquire time: ").append(maxAcquireTimeMs);
+		sb.append(lf).append("Maximum concurrent connection creations: ").append(maxConcurrentCreates);
+		if (acquireSiteSampleRate > 0) {
+			sb.append(lf).append("Capturing the call site of 1 in ").append(acquireSiteSampleRate).append(" acquired connections.");
+		}
+		if (leaseProfiler != null) {
+			sb.append(lf).append("Call sites holding connections the longest:");
+			for (final LeaseProfiler.Site site : getTopLeaseSites(5)) {
+				sb.append(lf).append("  ").append(site);
+			}
+		}
+		final ConnectionCloser c = closer;
+		if (c != null) {
+			sb.append(lf).append("Connections waiting to be closed: ").append(c.getBacklog())
+			.append(" (closed: ").append(c.closedCount.get()).append(", aborted: ").append(c.abortedCount.get()).append(")");
+		}
+		if (bag instanceof StripedConnectionBag) {
+			sb.append(lf).append("Connection stripes: ").append(((StripedConnectionBag) bag).getStripeCount());
+		}
 		sb.append(lf).append("Time values are in milliseconds.").append(lf);
 		return sb.toString();
 	}
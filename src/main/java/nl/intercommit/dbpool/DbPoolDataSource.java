@@ -0,0 +1,143 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+/**
+ * A DataSource that provides connections from a {@link DbPool}.
+ * <br>{@link #getConnection()} always returns a connection proxy (see {@link ConnectionProxy}),
+ * also when {@link DbPool#useProxy} is false: code using a DataSource
+ * closes a connection to return it to the pool.
+ * <br>The pool is opened when the first connection is requested (or when {@link #open()} is called).
+ * Call {@link #close()} to close the pool.
+ * <br>Connections for a different user are not supported, the user is determined by the {@link DbConnFactory}.
+ * @author frederikw
+ *
+ */
+public class DbPoolDataSource implements DataSource {
+
+	protected final DbPool pool;
+	protected final ReentrantLock openLock = new ReentrantLock();
+	protected PrintWriter logWriter;
+
+	/** A DataSource for the given pool, the pool is opened when needed. */
+	public DbPoolDataSource(final DbPool pool) {
+		super();
+		this.pool = pool;
+	}
+
+	/** A DataSource with a new pool (with default settings) for the given factory. */
+	public DbPoolDataSource(final DbConnFactory connFactory) {
+		super();
+		pool = new DbPool();
+		pool.setFactory(connFactory);
+		pool.useProxy = true;
+	}
+
+	public DbPool getPool() { return pool; }
+
+	/** 
+	 * Opens the pool if it is not already opened, see {@link DbPool#open(boolean)}.
+	 * A pool that was opened before it was given to this DataSource is not opened again.
+	 */
+	public void open() throws SQLException {
+
+		if (pool.isOpen()) return;
+		openLock.lock();
+		try {
+			if (pool.isOpen()) return;
+			pool.open(true);
+		} finally {
+			openLock.unlock();
+		}
+	}
+
+	/** Closes the pool, see {@link DbPool#close()}. */
+	public void close() { pool.close(); }
+
+	/** @return A connection proxy, close the connection to release it back to the pool. */
+	@Override
+	public Connection getConnection() throws SQLException {
+
+		open();
+		final Connection c = pool.acquire();
+		if (ConnectionProxy.getHandler(c) != null) return c;
+		final PooledConnection pc = pool.connections.get(c);
+		if (pc == null) {
+			pool.release(c);
+			throw new SQLException("Acquired database connection is no longer in the pool: " + c);
+		}
+		return ConnectionProxy.newProxy(pool, pc);
+	}
+
+	/** Only supported for the user of the {@link DbConnFactory}. */
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+
+		if (username != null && username.equals(pool.getFactory().getUser())) return getConnection();
+		throw new SQLFeatureNotSupportedException("Connections for user " + username + " are not supported, the pool has connections for user "
+				+ pool.getFactory().getUser());
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException { return logWriter; }
+
+	/** The log writer is not used, DbPool uses slf4j for logging. */
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException { logWriter = out; }
+
+	/** Sets {@link DbPool#maxAcquireTimeMs}, 0 means the pool's default is used. */
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		if (seconds > 0) pool.maxAcquireTimeMs = seconds * 1000L;
+	}
+
+	/** @return {@link DbPool#maxAcquireTimeMs} in seconds. */
+	@Override
+	public int getLoginTimeout() throws SQLException { return (int) (pool.maxAcquireTimeMs / 1000L); }
+
+	/** Unwraps to this DataSource or the {@link DbPool}. */
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+
+		if (iface.isInstance(this)) return iface.cast(this);
+		if (iface.isInstance(pool)) return iface.cast(pool);
+		throw new SQLException("Cannot unwrap " + getClass().getName() + " to " + iface.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		return (iface.isInstance(this) || iface.isInstance(pool));
+	}
+
+	/** Java 7 and higher, DbPool does not use java.util.logging. */
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException("DbPool does not use java.util.logging.");
+	}
+
+	@Override
+	public String toString() { return getClass().getSimpleName() + ":" + pool; }
+}
@@ -0,0 +1,44 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates (daemon) threads with a name that shows which pool they belong to. */
+public class DbPoolThreadFactory implements ThreadFactory {
+
+	protected final String namePrefix;
+	protected final boolean daemon;
+	protected final AtomicInteger threadNumber = new AtomicInteger();
+
+	public DbPoolThreadFactory(final String namePrefix, final boolean daemon) {
+		super();
+		this.namePrefix = namePrefix;
+		this.daemon = daemon;
+	}
+
+	@Override
+	public Thread newThread(final Runnable r) {
+
+		final Thread t = new Thread(r, namePrefix + "-" + threadNumber.incrementAndGet());
+		t.setDaemon(daemon);
+		return t;
+	}
+}
@@ -19,9 +19,13 @@
 package nl.intercommit.dbpool;
 
 import java.lang.Thread.State;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,7 +49,16 @@ import org.slf4j.LoggerFactory;
  * the database connection is released back into the pool.
  * <br>When an evicted connection is released to the pool by the application, an additional warning message is shown
  * (see documentation for {@link DbPool#release}).
- * <br><br>Idle time-out checks depend on the LIFO nature of the {@link DbPool#idleConnections}'s queue.
+ * <br><br>Idle time-out checks reserve an idle connection (see {@link ConnectionBag#reserve(PooledConnection)})
+ * before removing it, so that idle connections are never removed while they are leased.
+ * <br><br>The watcher does not check all connections at each interval. The pool registers a lease deadline
+ * when a connection is leased ({@link #leased(PooledConnection)}) and an idle deadline when a connection
+ * becomes idle ({@link #idled(PooledConnection)}). The watcher only checks connections with an expired deadline.
+ * A connection has at most one lease and one idle deadline: a deadline is not removed when a connection is released 
+ * or leased again, instead an expired deadline is moved to the new time-out of the connection (if any).
+ * As a safety net, all connections are checked for a missing deadline once every lease/idle time-out period.
+ * <br><br>Idle connections can be validated in the background (see {@link #keepAliveIntervalMs}), 
+ * so that connections dropped by a firewall or the database are replaced before they are leased.
  * @author frederikw
  *
  */
@@ -55,6 +68,8 @@ public class DbPoolWatcher implements Runnable {
 	
 	protected volatile Thread runningThread;
 	protected volatile boolean stop;
+	/** The shared scheduler running this watcher, null when this watcher runs in its own thread. */
+	protected volatile DbPoolWatcherScheduler scheduler;
 	
 	/** 
 	 * Maximum time a connection can be leased. Default 2 minutes. Value 0 means no lease time out.
@@ -73,6 +88,21 @@ public class DbPoolWatcher implements Runnable {
 	public int evictThreshold = 3;
 	/** Maximum time a connection can be idle. Default 1 minute. Value 0 means no idle time out. */
 	public long maxIdleTimeMs = 60000L;
+	/** 
+	 * Maximum amount of idle connections closed per {@link #idleCloseIntervalMs}, so that a pool shrinks gradually 
+	 * and connections do not have to be re-created all at once when usage returns. Default 0 (no maximum).
+	 */
+	public int idleCloseBatchSize;
+	/** The interval for {@link #idleCloseBatchSize}. Default 10 seconds. */
+	public long idleCloseIntervalMs = 10000L;
+	/** 
+	 * The peak of used connections during this window is kept in the pool (plus {@link #peakBuffer} connections): 
+	 * idle connections are only closed when the pool is larger. Default 0 (no peak window).
+	 * <br>Used connections are sampled at each {@link #timeOutWatchIntervalMs}.
+	 */
+	public long peakWindowMs;
+	/** The amount of connections kept in the pool on top of the peak of used connections, see {@link #peakWindowMs}. Default 0. */
+	public int peakBuffer;
 	/** The frequency at which the time-out watcher will check for expired leases and idle connections. */
 	public long timeOutWatchIntervalMs = 1000L;
 	/** Attempt to close a database connection that is evicted from the pool. Default false. */
@@ -89,21 +119,164 @@ public class DbPoolWatcher implements Runnable {
 	public int idledCount;
 	/** Number of times a connection was removed from the pool because it was not released. */
 	public int evictedCount;
+	/** 
+	 * Idle connections that were not used or validated for this period are validated in the background (keepalive).
+	 * Default 0 (disabled).
+	 * <br>The period is shortened by up to 20% per connection so that connections are not all validated at the same time.
+	 * A connection is reserved during validation (it cannot be leased) and removed from the pool when it is invalid.
+	 * See also {@link ValidationPolicy#validatedTrustTimeMs}.
+	 */
+	public long keepAliveIntervalMs;
+	/** 
+	 * Maximum amount of connections validated in the background at the same time. Default 2.
+	 * <br>Validations run in the pool's {@link ConnectionCloser} so that a database that does not respond
+	 * does not delay the watcher (or other pools using the same {@link DbPoolWatcherScheduler}).
+	 */
+	public int keepAliveBatchSize = 2;
+	/** Number of connections validated in the background. */
+	public final AtomicInteger keepAliveCount = new AtomicInteger();
+	/** Number of connections removed from the pool because they failed validation in the background. */
+	public final AtomicInteger keepAliveFailedCount = new AtomicInteger();
+	/** Number of keepalive validations that are running, see {@link #keepAliveBatchSize}. */
+	protected final AtomicInteger keepAlivesRunning = new AtomicInteger();
 	
 	protected DbPool dbPool;
+	/** Lease deadlines of leased connections, ordered by deadline. */
+	protected final DelayQueue<Deadline> leaseDeadlines = new DelayQueue<Deadline>();
+	/** Idle deadlines of idle connections, ordered by deadline. */
+	protected final DelayQueue<Deadline> idleDeadlines = new DelayQueue<Deadline>();
+	/** Times at which idle connections must be validated, see {@link #keepAliveIntervalMs}. */
+	protected final DelayQueue<Deadline> keepAliveDeadlines = new DelayQueue<Deadline>();
+	/** Time at which all connections are checked for a missing deadline. */
+	protected long nextLeaseSweep, nextIdleSweep;
+	/** Start of the current {@link #idleCloseIntervalMs} and the amount of idle connections closed in it. */
+	protected long idleCloseStart;
+	protected int idleClosed;
+	/** 
+	 * Samples of used connections (time, used) within the {@link #peakWindowMs}, 
+	 * the amount of used connections decreases from head to tail so that the head is the peak.
+	 */
+	protected final ArrayDeque<long[]> usedSamples = new ArrayDeque<long[]>();
+	/** The amount of connections kept in the pool based on the peak of used connections, see {@link #peakWindowMs}. */
+	protected int peakKeepSize;
 	/** 
 	 * If set to true, threads that lease a database connection for longer 
 	 * then {@link #maxLeaseTimeMs}, will get interrupted when the thread
 	 * is in one of the following states: {@link State#BLOCKED}, {@link State#WAITING}, {@link State#TIMED_WAITING}.  
+	 * <br>This also works for virtual threads: a virtual thread blocked on (socket) I/O is parked
+	 * and has state {@link State#WAITING}. Interrupting such a virtual thread closes the socket it is blocked on.
 	 * <br>Use with care.  
 	 */
 	public boolean interrupt;
+	/** 
+	 * When a lease expires and the thread leasing the connection was not interrupted (see {@link #interrupt}),
+	 * the statement in use is cancelled (<code>Statement.cancel()</code>). When the lease expires again,
+	 * the connection is aborted (<code>Connection.abort(Executor)</code>, see {@link ConnectionCloser#abort(java.sql.Connection)}).
+	 * Unlike an interrupt, this also frees a thread that is running (e.g. reading from a socket) in the database driver.
+	 * <br>The statement in use is registered by {@link DbConn} and by the connection proxy (see {@link DbPool#useProxy}).
+	 * When no statement is registered, the connection is aborted right away. Default false.
+	 */
+	public boolean cancelExpired;
+	/** Number of statements cancelled because a lease expired, see {@link #cancelExpired}. */
+	public int cancelledCount;
+	/** Number of connections aborted because a lease expired, see {@link #cancelExpired}. */
+	public int abortedCount;
+	/** Number of connections released after the statement was cancelled (and before the connection was aborted). */
+	public final AtomicInteger releasedAfterCancelCount = new AtomicInteger();
+	/** Number of connections released after the connection was aborted. */
+	public final AtomicInteger releasedAfterAbortCount = new AtomicInteger();
+	
+	/** {@link PooledConnection#escalation} when nothing was done for an expired lease. */
+	public static final int ESCALATION_NONE = 0;
+	/** {@link PooledConnection#escalation} after the statement in use was cancelled. */
+	public static final int ESCALATION_CANCELLED = 1;
+	/** {@link PooledConnection#escalation} after the connection was aborted. */
+	public static final int ESCALATION_ABORTED = 2;
 
 	public DbPoolWatcher(final DbPool dbPool) {
 		super();
 		this.dbPool = dbPool;
 	}
 	
+	/** The time at which a lease or idle time-out of a connection expires. */
+	protected static class Deadline implements Delayed {
+		
+		protected final PooledConnection pc;
+		protected final long deadline;
+		
+		public Deadline(final PooledConnection pc, final long deadline) {
+			super();
+			this.pc = pc;
+			this.deadline = deadline;
+		}
+		
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public int compareTo(final Delayed o) {
+			
+			final long other = ((Deadline) o).deadline;
+			return (deadline < other ? -1 : (deadline == other ? 0 : 1));
+		}
+	}
+	
+	/** 
+	 * Registers a lease deadline for a connection that was just leased, called by the pool.
+	 * A deadline registered for a previous lease is replaced when the lease time-out is shorter 
+	 * (e.g. an adaptive lease time-out, see {@link LeaseProfiler#adaptiveLeaseTimeOut}).
+	 */
+	public void leased(final PooledConnection pc) {
+		
+		if (pc.getMaxLeaseTimeMs() < 1L) return;
+		final long deadline = pc.waitStart + pc.getMaxLeaseTimeMs();
+		if (!pc.leaseDeadlineSet.get() && pc.leaseDeadlineSet.compareAndSet(false, true)) {
+			addLeaseDeadline(pc, deadline);
+		} else if (deadline < pc.leaseDeadline - timeOutWatchIntervalMs) {
+			addLeaseDeadline(pc, deadline);
+		}
+	}
+	
+	protected void addLeaseDeadline(final PooledConnection pc, final long deadline) {
+		
+		pc.leaseDeadline = deadline;
+		leaseDeadlines.add(new Deadline(pc, deadline));
+	}
+	
+	protected void rescheduleLease(final PooledConnection pc, final long deadline) {
+		addLeaseDeadline(pc, Math.max(deadline, System.currentTimeMillis() + timeOutWatchIntervalMs));
+	}
+	
+	/** Registers an idle deadline and keepalive time for a connection that just became idle, called by the pool. */
+	public void idled(final PooledConnection pc) {
+		
+		final long idleTime = maxIdleTimeMs;
+		if (idleTime > 0L && !pc.idleDeadlineSet.get() && pc.idleDeadlineSet.compareAndSet(false, true)) {
+			idleDeadlines.add(new Deadline(pc, pc.waitStart + idleTime));
+		}
+		if (keepAliveIntervalMs > 0L && !pc.keepAliveDeadlineSet.get() && pc.keepAliveDeadlineSet.compareAndSet(false, true)) {
+			keepAliveDeadlines.add(new Deadline(pc, getKeepAliveTime(pc)));
+		}
+	}
+	
+	/** 
+	 * The time at which an idle connection must be validated: {@link #keepAliveIntervalMs} after the connection
+	 * was last used or validated, minus a fixed part (0 to 20%) of the interval that differs per connection.  
+	 */
+	protected long getKeepAliveTime(final PooledConnection pc) {
+		
+		final long interval = keepAliveIntervalMs;
+		final long spread = (System.identityHashCode(pc) & 0xFFFF) * (interval / 5L) / 0x10000L;
+		return Math.max(pc.waitStart, pc.lastValidated) + interval - spread;
+	}
+	
+	/** Re-registers a deadline that expired without the connection timing out. */
+	protected void reschedule(final DelayQueue<Deadline> deadlines, final PooledConnection pc, final long deadline) {
+		deadlines.add(new Deadline(pc, Math.max(deadline, System.currentTimeMillis() + timeOutWatchIntervalMs)));
+	}
+	
 	/**
 	 * Checks connections for idle-timeout and lease-timeout at regular intervals
 	 * ({@link #timeOutWatchIntervalMs}).
@@ -115,8 +288,7 @@ public class DbPoolWatcher implements Runnable {
 		runningThread = Thread.currentThread();
 		try {
 			while (!stop) {
-				checkLeaseTimeOut();
-				checkIdleTimeOut();
+				check();
 				if (!stop) Thread.sleep(timeOutWatchIntervalMs);
 			}
 		} catch (InterruptedException ie) {
@@ -124,17 +296,41 @@ public class DbPoolWatcher implements Runnable {
 		} catch (Throwable t) {
 			log.error("Database pool time-out watcher no longer operational due to unexpected error.", t);
 		} finally {
-			if (expiredCount > 0 || idledCount > 0 || evictedCount > 0) { 
-				log.info("Database pool time-out watcher closed, idle connections closed: " + idledCount 
-						+ ", leases expired: " + expiredCount
-						+ ", evicted connections: " + evictedCount);
-			} else if (log.isDebugEnabled()) {
-				log.debug("Database pool lease watcher closed.");
-			}
+			logClosed();
 			runningThread = null;
 		}
 	}
 	
+	/** 
+	 * Checks connections for lease-timeout and idle-timeout once, validates idle connections (see {@link #keepAliveIntervalMs})
+	 * and reclaims leased connections that are no longer referenced (see {@link DbPool#reclaimUnreachable}).
+	 * Retires connections (see {@link DbPool#maxLifeTimeMs}) and creates idle connections to keep ready (see {@link DbPool#minIdle}).
+	 * Runs the {@link PoolSizeController} of the pool, if any.
+	 * Called at each interval by {@link #run()} or by a {@link DbPoolWatcherScheduler}. 
+	 */
+	public void check() throws InterruptedException {
+		
+		checkLeaseTimeOut();
+		checkIdleTimeOut();
+		checkKeepAlive();
+		dbPool.reclaimLeaks();
+		dbPool.retireConnections();
+		dbPool.maintainIdle();
+		final PoolSizeController sizer = dbPool.sizeController;
+		if (sizer != null) sizer.check(dbPool, System.currentTimeMillis());
+	}
+	
+	protected void logClosed() {
+		
+		if (expiredCount > 0 || idledCount > 0 || evictedCount > 0) { 
+			log.info("Database pool time-out watcher closed, idle connections closed: " + idledCount 
+					+ ", leases expired: " + expiredCount
+					+ ", evicted connections: " + evictedCount);
+		} else if (log.isDebugEnabled()) {
+			log.debug("Database pool lease watcher closed.");
+		}
+	}
+	
 	/** 
 	 * Checks for leased pooled connections the max-lease expire time. 
 	 * If max-lease time has expired:
@@ -146,42 +342,113 @@ public class DbPoolWatcher implements Runnable {
 	 */
 	protected void checkLeaseTimeOut() {
 		
-		final Iterator<PooledConnection> pcs = dbPool.connections.values().iterator();
-		while (pcs.hasNext()) {
-			final PooledConnection pc = pcs.next();
-			if (!pc.isLeased()) continue;
-			if (pc.getMaxLeaseTimeMs() < 1L) continue;
-			if (pc.getWaitTime() < pc.getMaxLeaseTimeMs()) continue;
+		final long now = System.currentTimeMillis();
+		if (maxLeaseTimeMs > 0L && now >= nextLeaseSweep) {
+			nextLeaseSweep = now + maxLeaseTimeMs;
+			for (final PooledConnection pc : dbPool.bag.values()) {
+				// A lease that is being set up still has the wait start of the previous lease.
+				if (pc.isLeased() && pc.leaseReady) leased(pc);
+			}
+		}
+		Deadline d;
+		while ((d = leaseDeadlines.poll()) != null) {
+			final PooledConnection pc = d.pc;
+			// Replaced by a shorter deadline.
+			if (d.deadline != pc.leaseDeadline) continue;
+			// A connection leased from now on registers a new deadline.
+			pc.leaseDeadlineSet.set(false);
+			// A lease that is being set up registers a new deadline when it is ready.
+			if (!pc.isLeased() || !pc.leaseReady || pc.getMaxLeaseTimeMs() < 1L) continue;
+			if (!pc.leaseDeadlineSet.compareAndSet(false, true)) continue;
+			if (pc.getWaitTime() < pc.getMaxLeaseTimeMs()) {
+				// Leased again after the deadline was registered.
+				rescheduleLease(pc, pc.waitStart + pc.getMaxLeaseTimeMs());
+				continue;
+			}
 			final Thread t = pc.getUser();
-			if (t != null && pc.isLeased()) {
-				final State userState = t.getState();
-				final StackTraceElement[] tstack = t.getStackTrace();
-				pc.dirty();
-				pc.leaseExpiredCount++;
-				boolean interrupted = false;
-				boolean evict = false;
-				if (interrupt && (userState == State.BLOCKED 
-						|| userState == State.WAITING
-						|| userState == State.TIMED_WAITING)) {
-					t.interrupt();
-					interrupted = true;
-				} else if (userState == State.TERMINATED) {
-					evict = true;
-				}
-				if (evictThreshold > 0 && (evict || pc.leaseExpiredCount >= evictThreshold)) {
-					evictConnection(pc, tstack, evict, interrupted);
-					continue;
-				}
-				expiredCount++;
-				pc.resetWaitStart();
-				final StringBuilder sb = new StringBuilder("Lease time (");
-				sb.append(pc.getMaxLeaseTimeMs()).append(") expired for pooled database connection used by thread ");
-				sb.append(t.toString());
-				if (interrupted) sb.append(". Thread was interrupted.");
-				sb.append("\nStack trace from thread:\n");
-				addStackTrace(sb, tstack);
-				log.warn(sb.toString());
+			if (t == null) {
+				rescheduleLease(pc, 0L);
+				continue;
+			}
+			if (!pc.isLeased()) {
+				pc.leaseDeadlineSet.set(false);
+				if (pc.isLeased()) leased(pc);
+				continue;
 			}
+			final State userState = t.getState();
+			// Prefer the captured call site over walking the stack of the thread leasing the connection.
+			final StackTraceElement[] acquireSite = pc.acquireSite;
+			final StackTraceElement[] tstack = (acquireSite == null ? t.getStackTrace() : acquireSite);
+			pc.dirty();
+			pc.leaseExpiredCount++;
+			boolean interrupted = false;
+			boolean evict = false;
+			if (interrupt && (userState == State.BLOCKED 
+					|| userState == State.WAITING
+					|| userState == State.TIMED_WAITING)) {
+				t.interrupt();
+				interrupted = true;
+			} else if (userState == State.TERMINATED) {
+				evict = true;
+			}
+			final String escalated = (cancelExpired && !interrupted && !evict ? escalate(pc) : null);
+			if (evictThreshold > 0 && (evict || pc.leaseExpiredCount >= evictThreshold)) {
+				evictConnection(pc, tstack, evict, interrupted);
+				continue;
+			}
+			expiredCount++;
+			pc.resetWaitStart();
+			rescheduleLease(pc, pc.waitStart + pc.getMaxLeaseTimeMs());
+			int suppressed = 0;
+			final LeaseProfiler profiler = dbPool.leaseProfiler;
+			if (profiler != null) {
+				suppressed = profiler.expired(profiler.getSite(tstack));
+				if (suppressed < 0) continue;
+			}
+			final StringBuilder sb = new StringBuilder("Lease time (");
+			sb.append(pc.getMaxLeaseTimeMs()).append(") expired for pooled database connection used by ");
+			sb.append(ConnectionBag.isVirtual(t) ? "virtual thread " : "thread ");
+			sb.append(t.toString());
+			if (interrupted) sb.append(". Thread was interrupted.");
+			if (escalated != null) sb.append(". ").append(escalated);
+			if (suppressed > 0) sb.append(" (").append(suppressed).append(" similar warnings were not logged)");
+			addStackTrace(sb, pc, tstack);
+			log.warn(sb.toString());
+		}
+	}
+	
+	/** 
+	 * Cancels the statement in use or, if that was already done or not possible, aborts the connection.
+	 * @return A description of what was done, null if nothing was done.
+	 */
+	protected String escalate(final PooledConnection pc) {
+		
+		final Statement statement = pc.statement;
+		if (pc.escalation == ESCALATION_NONE && statement != null) {
+			try {
+				statement.cancel();
+				pc.escalation = ESCALATION_CANCELLED;
+				cancelledCount++;
+				return "Statement was cancelled.";
+			} catch (SQLException sqle) {
+				if (log.isDebugEnabled()) log.debug("Failed to cancel statement for database connection " + pc.dbConn + ": " + sqle);
+			}
+		}
+		if (pc.escalation != ESCALATION_ABORTED && dbPool.getCloser().abort(pc.dbConn)) {
+			pc.escalation = ESCALATION_ABORTED;
+			abortedCount++;
+			return "Connection was aborted.";
+		}
+		return null;
+	}
+	
+	/** Registers the release of a connection for which the lease expired and the statement was cancelled or the connection aborted. */
+	public void releasedAfterEscalation(final int escalation) {
+		
+		if (escalation == ESCALATION_CANCELLED) {
+			releasedAfterCancelCount.incrementAndGet();
+		} else if (escalation == ESCALATION_ABORTED) {
+			releasedAfterAbortCount.incrementAndGet();
 		}
 	}
 	
@@ -195,6 +462,13 @@ public class DbPoolWatcher implements Runnable {
 		}
 	}
 	
+	/** Adds the acquire site of the connection or, if that was not captured, the stack-trace of the thread to the stringbuilder. */
+	protected void addStackTrace(final StringBuilder sb, final PooledConnection pc, final StackTraceElement[] tstack) {
+		
+		sb.append(tstack == pc.acquireSite ? "\nConnection acquired at:\n" : "\nStack trace from thread:\n");
+		addStackTrace(sb, tstack);
+	}
+	
 	/** 
 	 * Evicts a pooled and leased connection from the pool. 
 	 * Does not close the connection.
@@ -204,8 +478,11 @@ public class DbPoolWatcher implements Runnable {
 		
 		final String connDesc = pc.dbConn.toString();
 		evictedCount++;
+		dbPool.endRetiring(pc);
+		dbPool.bag.remove(pc);
 		dbPool.connections.remove(pc.dbConn);
 		dbPool.connectionCount.decrementAndGet();
+		dbPool.requestConnectionsForWaiters();
 		final StringBuilder sb = new StringBuilder("Evicting database connection from pool after lease time expired ");
 		sb.append(pc.leaseExpiredCount).append(" times");
 		if (threadTerminated) {
@@ -224,58 +501,177 @@ public class DbPoolWatcher implements Runnable {
 			closeConnection = true;
 		}
 		sb.append("Connection: ").append(connDesc);
-		sb.append("\nStack trace from thread:\n");
-		addStackTrace(sb, tstack);
+		addStackTrace(sb, pc, tstack);
 		log.warn(sb.toString());
 		if (closeConnection) {
-			dbPool.getFactory().close(pc.dbConn, true);
+			// The connection might still be in use: abort it if the driver supports it.
+			final ConnectionCloser closer = dbPool.getCloser();
+			if (!closer.abort(pc.dbConn)) closer.close(dbPool.getFactory(pc), pc.dbConn, true);
 		}
 	}
 	
 	/** Checks for non-leased pooled connections the idle expire time. */
-	protected void checkIdleTimeOut() throws InterruptedException{
+	protected void checkIdleTimeOut() throws InterruptedException {
 		
-		if (maxIdleTimeMs == 0L || dbPool.connectionCount.get() <= dbPool.minSize) return;
-		// Fetch the idle connection that has been waiting the longest time.
-		PooledConnection pc = dbPool.idleConnections.peekLast();
-		while (pc != null && pc.waitStart + maxIdleTimeMs < System.currentTimeMillis()) {
-			// Try to remove the idle connection from the pool
-			// First decrease amount of available connections.
-			final boolean haveLease = dbPool.connLeaser.tryAcquire(1L, TimeUnit.MILLISECONDS);
-			if (!haveLease) return; // Sudden busy moment: all connections got leased, so no idle time-outs.
-			if (pc.isLeased()) { // Should not happen, but better safe then sorry
-				dbPool.connLeaser.release();
-				log.warn("Idle connection got leased after acquiring permit to remove idle connection.");
-				return;
+		if (maxIdleTimeMs == 0L) return;
+		final long now = System.currentTimeMillis();
+		samplePeakUsed(now);
+		if (idleCloseBatchSize > 0 && now - idleCloseStart >= idleCloseIntervalMs) {
+			idleCloseStart = now;
+			idleClosed = 0;
+		}
+		if (now >= nextIdleSweep) {
+			nextIdleSweep = now + maxIdleTimeMs;
+			for (final PooledConnection pc : dbPool.bag.values()) {
+				if (pc.getState() == PooledConnection.STATE_IDLE) idled(pc);
 			}
-			// Remove connection from pool
-			try {
-				PooledConnection pcRemoved = dbPool.idleConnections.removeLast();
-				if (pc != pcRemoved) { // Should not happen, but better safe then sorry
-					dbPool.idleConnections.addLast(pcRemoved);
-					dbPool.connLeaser.release();
-					log.warn("Idle connection no longer last in queue after acquiring permit to remove idle connection.");
-					return;
-				}
-			} catch (NoSuchElementException nse) {
-				dbPool.connLeaser.release();
-				log.warn("Idle connection no longer in queue after acquiring permit to remove idle connection.");
-				return;
+		}
+		Deadline d;
+		while ((d = idleDeadlines.poll()) != null) {
+			final PooledConnection pc = d.pc;
+			// A connection that becomes idle from now on registers a new deadline.
+			pc.idleDeadlineSet.set(false);
+			if (pc.getState() != PooledConnection.STATE_IDLE) continue;
+			if (!pc.idleDeadlineSet.compareAndSet(false, true)) continue;
+			if (idleCloseBatchSize > 0 && idleClosed >= idleCloseBatchSize) {
+				// Expired connections not yet checked stay in the queue until the next interval.
+				reschedule(idleDeadlines, pc, idleCloseStart + idleCloseIntervalMs);
+				break;
+			}
+			// Connections at the minimum pool size are checked again at the next interval.
+			if (pc.waitStart + maxIdleTimeMs >= System.currentTimeMillis() || isIdleRequired(0)) {
+				reschedule(idleDeadlines, pc, pc.waitStart + maxIdleTimeMs);
+				continue;
+			}
+			// Claim the idle connection, this fails when the connection just got leased.
+			if (!dbPool.bag.reserve(pc)) {
+				pc.idleDeadlineSet.set(false);
+				if (pc.getState() == PooledConnection.STATE_IDLE) idled(pc);
+				continue;
+			}
+			// The connection could have been leased and released after the idle time was checked. 
+			if (pc.waitStart + maxIdleTimeMs >= System.currentTimeMillis() || isIdleRequired(1)) {
+				reschedule(idleDeadlines, pc, pc.waitStart + maxIdleTimeMs);
+				dbPool.bag.unreserve(pc);
+				continue;
 			}
 			dbPool.removePooledConnection(pc);
 			idledCount++;
+			idleClosed++;
 			log.info("Removed an idle connection from database pool " + dbPool.connFactory);
-			if (dbPool.connectionCount.get() > dbPool.minSize) {
-				pc = dbPool.idleConnections.peekLast();
-			} else {
-				pc = null;
+		}
+	}
+	
+	/** 
+	 * @return True if the pool is at its minimum size, at the recent peak usage (see {@link #peakWindowMs}) or, when idle connections are kept ready (see {@link DbPool#minIdle}), 
+	 * at the amount of idle connections to keep ready.
+	 * @param reserved The amount of idle connections reserved by this watcher.
+	 */
+	protected boolean isIdleRequired(final int reserved) {
+		
+		if (dbPool.connectionCount.get() <= Math.max(dbPool.getEffectiveMinSize(), peakKeepSize)) return true;
+		final int idleTarget = dbPool.idleTarget;
+		return (idleTarget > 0 && dbPool.getCountIdleConnections() + reserved <= idleTarget);
+	}
+	
+	/** Samples the used connections and updates the {@link #peakKeepSize}, see {@link #peakWindowMs}. */
+	protected void samplePeakUsed(final long now) {
+		
+		if (peakWindowMs < 1L) {
+			if (peakKeepSize != 0) {
+				usedSamples.clear();
+				peakKeepSize = 0;
+			}
+			return;
+		}
+		final int used = dbPool.getCountUsedConnections();
+		while (!usedSamples.isEmpty() && usedSamples.peekLast()[1] <= used) usedSamples.pollLast();
+		usedSamples.addLast(new long[] { now, used });
+		while (usedSamples.peekFirst()[0] < now - peakWindowMs) usedSamples.pollFirst();
+		peakKeepSize = (usedSamples.isEmpty() ? used : (int) usedSamples.peekFirst()[1]) + peakBuffer;
+	}
+	
+	/** 
+	 * Starts validating idle connections that were not used or validated for {@link #keepAliveIntervalMs},
+	 * at most {@link #keepAliveBatchSize} connections at the same time. Other connections are validated at the next interval.
+	 */
+	protected void checkKeepAlive() {
+		
+		if (keepAliveIntervalMs < 1L) return;
+		Deadline d;
+		while ((d = keepAliveDeadlines.poll()) != null) {
+			final PooledConnection pc = d.pc;
+			// A connection that becomes idle from now on registers a new keepalive time.
+			pc.keepAliveDeadlineSet.set(false);
+			if (pc.getState() != PooledConnection.STATE_IDLE) continue;
+			if (!pc.keepAliveDeadlineSet.compareAndSet(false, true)) continue;
+			final long keepAliveTime = getKeepAliveTime(pc);
+			if (keepAliveTime > System.currentTimeMillis() || keepAlivesRunning.get() >= keepAliveBatchSize) {
+				reschedule(keepAliveDeadlines, pc, keepAliveTime);
+				continue;
+			}
+			if (!dbPool.bag.reserve(pc)) {
+				pc.keepAliveDeadlineSet.set(false);
+				if (pc.getState() == PooledConnection.STATE_IDLE) idled(pc);
+				continue;
 			}
+			keepAlivesRunning.incrementAndGet();
+			startKeepAlive(pc);
 		}
 	}
 	
+	/** Validates a reserved idle connection in the pool's {@link ConnectionCloser} and makes it available again when it is valid. */
+	protected void startKeepAlive(final PooledConnection pc) {
+		
+		dbPool.getCloser().execute(new Runnable() {
+			@Override public void run() {
+				try {
+					if (keepAlive(pc)) {
+						reschedule(keepAliveDeadlines, pc, getKeepAliveTime(pc));
+						dbPool.bag.unreserve(pc);
+						// The idle deadline could have expired while the connection was reserved.
+						idled(pc);
+					}
+				} finally {
+					keepAlivesRunning.decrementAndGet();
+				}
+			}
+		});
+	}
+	
+	/** 
+	 * Validates a reserved idle connection. An invalid connection is removed from the pool
+	 * and replaced when the pool is below {@link DbPool#minSize}.
+	 * @return True if the connection is valid.
+	 */
+	protected boolean keepAlive(final PooledConnection pc) {
+		
+		keepAliveCount.incrementAndGet();
+		try {
+			dbPool.getFactory(pc).validate(pc.dbConn);
+			pc.lastValidated = System.currentTimeMillis();
+			return true;
+		} catch (SQLException sqle) {
+			keepAliveFailedCount.incrementAndGet();
+			log.info("Idle database connection failed validation, connection is removed from the pool: " + sqle);
+			dbPool.connectionsInvalid.incrementAndGet();
+			dbPool.removePooledConnection(pc);
+			if (dbPool.connectionCount.get() + dbPool.pendingCreates.get() < dbPool.getEffectiveMinSize()) {
+				dbPool.requestNewConnection();
+			}
+			return false;
+		}
+	}
+	
+	/** Stops this watcher, also removes this watcher from the {@link DbPoolWatcherScheduler} (if any). */
 	public void stop() {
 		stop = true;
+		final DbPoolWatcherScheduler s = scheduler;
+		if (s != null && s.deregister(this)) logClosed();
 		Thread t = runningThread;
 		if (t != null) t.interrupt();
 	}
+	
+	/** @return True if this watcher was not stopped. */
+	public boolean isRunning() { return !stop; }
 }
@@ -0,0 +1,116 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the {@link DbPoolWatcher}s of many pools on a small pool of (daemon) threads,
+ * instead of a thread per pool (see {@link DbPool#setWatcherScheduler(DbPoolWatcherScheduler)}).
+ * <br>Each watcher is checked at its own {@link DbPoolWatcher#timeOutWatchIntervalMs}
+ * (the interval is read when the watcher is registered). The checks for one watcher never run concurrently.
+ * <br>A watcher is registered when the pool is opened and removed when the pool is closed
+ * (via {@link DbPoolWatcher#stop()}).
+ * <br>Use {@link #getShared()} for a scheduler shared by all pools in the JVM.
+ * @author frederikw
+ *
+ */
+public class DbPoolWatcherScheduler {
+
+	protected Logger log = LoggerFactory.getLogger(getClass());
+
+	/** Amount of threads used by the shared scheduler, must be set before {@link #getShared()} is called. Default 2. */
+	public static int sharedThreads = 2;
+
+	protected final ScheduledThreadPoolExecutor executor;
+	protected final Map<DbPoolWatcher, ScheduledFuture<?>> watchers = new ConcurrentHashMap<DbPoolWatcher, ScheduledFuture<?>>();
+
+	public DbPoolWatcherScheduler(final int threads) {
+		super();
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new DbPoolThreadFactory("DbPoolWatcherScheduler", true));
+		// Cancelled watchers should not stay in the queue (Java 7 and higher).
+		try {
+			executor.getClass().getMethod("setRemoveOnCancelPolicy", boolean.class).invoke(executor, true);
+		} catch (Exception ignored) {}
+	}
+
+	private static class SharedHolder {
+		static final DbPoolWatcherScheduler SHARED = new DbPoolWatcherScheduler(sharedThreads);
+	}
+
+	/** The scheduler shared by all pools, created when first used. */
+	public static DbPoolWatcherScheduler getShared() { return SharedHolder.SHARED; }
+
+	/** Runs the checks of the watcher at the watcher's interval until the watcher is stopped. */
+	public void register(final DbPoolWatcher watcher) {
+
+		final long intervalMs = Math.max(1L, watcher.timeOutWatchIntervalMs);
+		watcher.scheduler = this;
+		final ScheduledFuture<?> f = executor.scheduleWithFixedDelay(new Runnable() {
+			@Override public void run() { check(watcher); }
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		final ScheduledFuture<?> previous = watchers.put(watcher, f);
+		if (previous != null) previous.cancel(false);
+		if (log.isDebugEnabled()) log.debug("Registered time-out watcher for database pool " + watcher.dbPool + ", watchers: " + watchers.size());
+	}
+
+	/** @return True if the watcher was registered. */
+	public boolean deregister(final DbPoolWatcher watcher) {
+
+		final ScheduledFuture<?> f = watchers.remove(watcher);
+		if (f == null) return false;
+		f.cancel(false);
+		if (log.isDebugEnabled()) log.debug("Removed time-out watcher for database pool " + watcher.dbPool + ", watchers: " + watchers.size());
+		return true;
+	}
+
+	protected void check(final DbPoolWatcher watcher) {
+
+		if (!watcher.isRunning()) {
+			deregister(watcher);
+			return;
+		}
+		try {
+			watcher.check();
+		} catch (InterruptedException ie) {
+			if (log.isDebugEnabled()) log.debug("Interrupted while watching connection time-outs.");
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			log.error("Database pool time-out watcher for " + watcher.dbPool + " no longer operational due to unexpected error.", t);
+			deregister(watcher);
+		}
+	}
+
+	/** Amount of registered watchers. */
+	public int getWatcherCount() { return watchers.size(); }
+
+	/** Stops all watchers and the threads of this scheduler. */
+	public void shutdown() {
+
+		for (final DbPoolWatcher watcher : watchers.keySet()) deregister(watcher);
+		executor.shutdownNow();
+	}
+}
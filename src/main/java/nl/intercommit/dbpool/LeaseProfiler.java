@@ -0,0 +1,260 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates lease statistics per call site that acquired a connection
+ * (see {@link DbPool#setLeaseProfiler(LeaseProfiler)} and {@link DbPool#acquireSiteSampleRate}):
+ * the amount of leases, the total and maximum time a connection was held and the amount of expired leases.
+ * <br>Leases for which no call site was captured are registered with the "unknown" site.
+ * <br>The {@link DbPoolWatcher} logs the warning for an expired lease only once per site per {@link #logIntervalMs},
+ * the next warning for the site mentions how many warnings were suppressed.
+ * <br>Use {@link DbPool#getTopLeaseSites(int)} to find the sites that hold connections the longest.
+ * <br>The hold times per site are kept in a {@link TimeHistogram} to estimate quantiles.
+ * With {@link #adaptiveLeaseTimeOut}, the lease time-out of a connection acquired at a known site is derived from
+ * the hold times of the site: {@link #leaseTimeOutFactor} x the {@link #leaseTimeOutQuantile} hold time, 
+ * bounded by {@link #minLeaseTimeOutMs} and {@link #maxLeaseTimeOutMs}.
+ * This catches leaks in short (OLTP) leases quickly without expiring the leases of long running jobs.
+ * Use {@link DbPool#acquireSiteSampleRate} 1 to apply adaptive lease time-outs to all leases.
+ * @author frederikw
+ *
+ */
+public class LeaseProfiler {
+
+	/** Warnings for expired leases are logged once per site per interval. Default 1 minute. */
+	public long logIntervalMs = 60000L;
+	/** Maximum amount of sites tracked, leases for other sites are registered with the "unknown" site. Default 1000. */
+	public int maxSites = 1000;
+	/** If true, the lease time-out of connections acquired at a known site is based on the hold times of the site. Default false. */
+	public boolean adaptiveLeaseTimeOut;
+	/** The quantile of the hold times used for the adaptive lease time-out. Default 0.99 */
+	public double leaseTimeOutQuantile = 0.99;
+	/** The adaptive lease time-out is this factor times the {@link #leaseTimeOutQuantile} hold time. Default 3. */
+	public double leaseTimeOutFactor = 3.0;
+	/** Minimum adaptive lease time-out. Default 1 second. */
+	public long minLeaseTimeOutMs = 1000L;
+	/** Maximum adaptive lease time-out. Default 10 minutes. */
+	public long maxLeaseTimeOutMs = 600000L;
+	/** Amount of leases of a site that must have ended before an adaptive lease time-out is used. Default 100. */
+	public int minLeaseSamples = 100;
+	/** 
+	 * The hold time histogram of a site is halved after this amount of leases, 
+	 * so that the adaptive lease time-out follows changes in hold times. Default 10 000.
+	 */
+	public int leaseSamplesHalfLife = 10000;
+	/** The adaptive lease time-out of a site is updated after this amount of leases. Default 32. */
+	public int leaseTimeOutUpdateInterval = 32;
+
+	protected final ConcurrentHashMap<SiteKey, Site> sites = new ConcurrentHashMap<SiteKey, Site>();
+	protected final Site unknown = new Site(null);
+
+	/**
+	 * Statistics for a call site. Sites with the same stack trace elements are equal,
+	 * the hash code of the stack trace is calculated once.
+	 */
+	public static class Site {
+
+		protected final StackTraceElement[] stack;
+		protected final int hash;
+		protected final AtomicLong leases = new AtomicLong();
+		protected final AtomicLong totalHoldTimeMs = new AtomicLong();
+		protected final AtomicLong maxHoldTimeMs = new AtomicLong();
+		protected final AtomicLong expired = new AtomicLong();
+		protected final AtomicInteger suppressed = new AtomicInteger();
+		protected volatile long lastLogged;
+		protected final TimeHistogram holdTimes = new TimeHistogram();
+		/** The amount of hold times in the histogram, see {@link LeaseProfiler#leaseSamplesHalfLife}. */
+		protected final AtomicLong samples = new AtomicLong();
+		/** The adaptive lease time-out, 0 if not (yet) determined. */
+		protected volatile long leaseTimeOutMs;
+
+		public Site(final StackTraceElement[] stack) {
+			super();
+			this.stack = stack;
+			hash = Arrays.hashCode(stack);
+		}
+
+		/** Registers a lease that ended. */
+		public void released(final long holdTimeMs) {
+
+			leases.incrementAndGet();
+			totalHoldTimeMs.addAndGet(holdTimeMs);
+			long max;
+			while ((max = maxHoldTimeMs.get()) < holdTimeMs) {
+				if (maxHoldTimeMs.compareAndSet(max, holdTimeMs)) break;
+			}
+			holdTimes.record(holdTimeMs);
+		}
+
+		/** Halves the hold times in the histogram, see {@link TimeHistogram#decay()}. */
+		protected void decay() { holdTimes.decay(); }
+
+		/** 
+		 * @param q The quantile (e.g. 0.99).
+		 * @return The estimated hold time for the quantile, 0 if there are no hold times (see {@link TimeHistogram#getQuantileMs(double)}).
+		 */
+		public long getHoldTimeQuantileMs(final double q) { return holdTimes.getQuantileMs(q); }
+
+		/** The adaptive lease time-out, 0 if not (yet) determined. */
+		public long getLeaseTimeOutMs() { return leaseTimeOutMs; }
+
+		/** The call site, null for the "unknown" site. */
+		public StackTraceElement[] getStack() { return stack; }
+		public long getLeases() { return leases.get(); }
+		public long getTotalHoldTimeMs() { return totalHoldTimeMs.get(); }
+		public long getMaxHoldTimeMs() { return maxHoldTimeMs.get(); }
+		public long getExpired() { return expired.get(); }
+
+		@Override
+		public int hashCode() { return hash; }
+
+		@Override
+		public boolean equals(final Object o) {
+			return (o instanceof Site && ((Site) o).hash == hash && Arrays.equals(((Site) o).stack, stack));
+		}
+
+		@Override
+		public String toString() {
+
+			final StringBuilder sb = new StringBuilder();
+			sb.append(stack == null || stack.length == 0 ? "unknown" : stack[0].toString());
+			sb.append(" leases: ").append(getLeases()).append(", total hold time: ").append(getTotalHoldTimeMs())
+			.append(", max hold time: ").append(getMaxHoldTimeMs()).append(", expired: ").append(getExpired());
+			if (leaseTimeOutMs > 0L) sb.append(", lease time-out: ").append(leaseTimeOutMs);
+			return sb.toString();
+		}
+	}
+
+	/** 
+	 * The key of a site in the map of sites: a lightweight wrapper of the stack trace with the hash code calculated once,
+	 * so that looking up an existing site does not create the statistics of a site.
+	 */
+	protected static class SiteKey {
+
+		protected final StackTraceElement[] stack;
+		protected final int hash;
+
+		public SiteKey(final StackTraceElement[] stack) {
+			super();
+			this.stack = stack;
+			hash = Arrays.hashCode(stack);
+		}
+
+		@Override
+		public int hashCode() { return hash; }
+
+		@Override
+		public boolean equals(final Object o) {
+			return (o instanceof SiteKey && ((SiteKey) o).hash == hash && Arrays.equals(((SiteKey) o).stack, stack));
+		}
+	}
+
+	/** @return The (shared) site for the stack, the "unknown" site if stack is null or too many sites are tracked. */
+	public Site getSite(final StackTraceElement[] stack) {
+
+		if (stack == null) return unknown;
+		final SiteKey key = new SiteKey(stack);
+		Site site = sites.get(key);
+		if (site == null) {
+			if (sites.size() >= maxSites) return unknown;
+			final Site newSite = new Site(stack);
+			site = sites.putIfAbsent(key, newSite);
+			if (site == null) site = newSite;
+		}
+		return site;
+	}
+
+	/** Registers the lease of a connection that is being released and updates the adaptive lease time-out of the site. */
+	public void released(final PooledConnection pc) {
+
+		final Site site = pc.leaseSite;
+		if (site == null) return;
+		site.released(System.currentTimeMillis() - pc.leaseStart);
+		final long samples = site.samples.incrementAndGet();
+		if (leaseSamplesHalfLife > 0 && samples % leaseSamplesHalfLife == 0L) site.decay();
+		if (adaptiveLeaseTimeOut && site.stack != null && site.getLeases() >= minLeaseSamples 
+				&& samples % Math.max(1, leaseTimeOutUpdateInterval) == 0L) {
+			final long timeOut = (long) (leaseTimeOutFactor * site.getHoldTimeQuantileMs(leaseTimeOutQuantile));
+			site.leaseTimeOutMs = Math.min(maxLeaseTimeOutMs, Math.max(minLeaseTimeOutMs, timeOut));
+		}
+	}
+
+	/** 
+	 * @return The adaptive lease time-out for a connection acquired at the site (see {@link #adaptiveLeaseTimeOut}),
+	 * or the default time-out when there is none. 
+	 */
+	public long getLeaseTimeOutMs(final Site site, final long defaultTimeOutMs) {
+
+		if (!adaptiveLeaseTimeOut || site == null || defaultTimeOutMs < 1L) return defaultTimeOutMs;
+		final long timeOut = site.leaseTimeOutMs;
+		return (timeOut > 0L ? timeOut : defaultTimeOutMs);
+	}
+
+	/**
+	 * Registers an expired lease for the site.
+	 * @return -1 if a warning for the site was logged during the last {@link #logIntervalMs},
+	 * else the amount of warnings suppressed since the last warning was logged.
+	 */
+	public int expired(final Site site) {
+
+		site.expired.incrementAndGet();
+		final long now = System.currentTimeMillis();
+		if (now - site.lastLogged < logIntervalMs) {
+			site.suppressed.incrementAndGet();
+			return -1;
+		}
+		site.lastLogged = now;
+		return site.suppressed.getAndSet(0);
+	}
+
+	/** @return At most max sites, ordered by total hold time (longest first). */
+	public List<Site> getTopSites(final int max) {
+
+		final List<Site> l = new ArrayList<Site>(sites.values());
+		if (unknown.getLeases() > 0L || unknown.getExpired() > 0L) l.add(unknown);
+		Collections.sort(l, new Comparator<Site>() {
+			@Override public int compare(final Site s1, final Site s2) {
+				final long t1 = s1.getTotalHoldTimeMs(), t2 = s2.getTotalHoldTimeMs();
+				return (t1 < t2 ? 1 : (t1 == t2 ? 0 : -1));
+			}
+		});
+		return (l.size() > max ? new ArrayList<Site>(l.subList(0, Math.max(0, max))) : l);
+	}
+
+	/** Removes all statistics. */
+	public void clear() {
+
+		sites.clear();
+		unknown.leases.set(0L);
+		unknown.totalHoldTimeMs.set(0L);
+		unknown.maxHoldTimeMs.set(0L);
+		unknown.expired.set(0L);
+		unknown.samples.set(0L);
+		unknown.holdTimes.clear();
+	}
+}
@@ -22,6 +22,7 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +30,8 @@ import org.slf4j.LoggerFactory;
 public class MySQLConnFactory implements DbConnFactory {
 	
 	protected Logger log = LoggerFactory.getLogger(getClass());
-	protected boolean initialized;
+	protected volatile boolean initialized;
+	protected final ReentrantLock initLock = new ReentrantLock();
 
 	public String dbDriverClass = "com.mysql.jdbc.Driver";
 	public boolean autoCommit;
@@ -65,19 +67,24 @@ public class MySQLConnFactory implements DbConnFactory {
 		mysqlProps.setProperty("failOverReadOnly", "false");
 	}
 	
-	public synchronized void initialize() {
+	/** Loads the driver class once. Uses a lock instead of <code>synchronized</code> so that virtual threads are not pinned. */
+	public void initialize() {
 
-		if (initialized) return; 
+		if (initialized) return;
+		initLock.lock();
 		try {
+			if (initialized) return; 
 			Class.forName(dbDriverClass).newInstance();
+			initialized = true;
 		} catch (Exception e) {
 			throw new RuntimeException("Unable to get MySQL driver class " + dbDriverClass, e);
+		} finally {
+			initLock.unlock();
 		}
-		initialized = true;
 	}
 
 	@Override
-	public synchronized Connection getConnection() throws SQLException {
+	public Connection getConnection() throws SQLException {
 
 		initialize();
 		Connection dbConn = null;
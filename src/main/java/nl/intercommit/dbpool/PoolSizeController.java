@@ -0,0 +1,224 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the effective maximum and minimum size of a pool within the bounds set by the operator
+ * (see {@link DbPool#setSizeController(PoolSizeController)}, {@link DbPool#getEffectiveMaxSize()} and {@link DbPool#getEffectiveMinSize()}).
+ * The configured {@link DbPool#maxSize} and {@link DbPool#minSize} are the starting point and are not changed.
+ * <br>The {@link DbPoolWatcher} samples the amount of used connections and waiting threads at each check,
+ * the pool registers the time each acquire waited for a connection.
+ * Every {@link #adjustIntervalMs} the controller evaluates the time-weighted utilization (used connections / maximum size),
+ * the {@link #waitQuantile} acquire wait time and the average amount of waiting threads:
+ * <br> - the maximum size grows when acquires wait longer than {@link #targetWaitMs} (or on average a thread was waiting)
+ * while the utilization is at least {@link #growUtilization}.
+ * When the utilization is low, waiting is caused by slow connection creation and more connections would not help.
+ * <br> - the maximum size shrinks when the utilization was below {@link #shrinkUtilization} without waiting
+ * for {@link #shrinkIntervals} consecutive intervals, but not below the peak usage.
+ * <br> - the minimum size follows the average amount of used connections: it is raised when the maximum size grows
+ * and lowered when the maximum size shrinks.
+ * <br>The distance between the grow and shrink thresholds, the consecutive intervals required to shrink
+ * and the {@link #cooldownIntervals} after an adjustment prevent oscillation.
+ * <br>Each adjustment is logged and kept as {@link Decision} (see {@link #getDecisions()}).
+ * Connections above a lowered maximum size are not closed but are removed by the idle time-out.
+ * @author frederikw
+ *
+ */
+public class PoolSizeController {
+
+	protected Logger log = LoggerFactory.getLogger(getClass());
+
+	/** Lower bound for the maximum pool size. Default 1. */
+	public int minMaxSize = 1;
+	/** Upper bound for the maximum pool size. Default 50. */
+	public int maxMaxSize = 50;
+	/** Lower bound for the minimum pool size. Default 0. */
+	public int minMinSize;
+	/** Upper bound for the minimum pool size. Default 10. */
+	public int maxMinSize = 10;
+	/** Time between adjustments. Default 10 seconds. */
+	public long adjustIntervalMs = 10000L;
+	/** The quantile of acquire wait times compared with {@link #targetWaitMs}. Default 0.95 */
+	public double waitQuantile = 0.95;
+	/** The maximum size grows when the {@link #waitQuantile} acquire wait time is longer. Default 20 ms. */
+	public long targetWaitMs = 20L;
+	/** The maximum size only grows when the utilization is at least this fraction. Default 0.8 */
+	public double growUtilization = 0.8;
+	/** The maximum size only shrinks when the utilization is below this fraction. Default 0.4 */
+	public double shrinkUtilization = 0.4;
+	/** The amount of consecutive intervals with low utilization before the maximum size shrinks. Default 3. */
+	public int shrinkIntervals = 3;
+	/** The amount of intervals after an adjustment in which no adjustment is made. Default 1. */
+	public int cooldownIntervals = 1;
+	/** The maximum size grows or shrinks with this fraction of the maximum size (at least 1). Default 0.25 */
+	public double stepFraction = 0.25;
+	/** Maximum amount of decisions kept for {@link #getDecisions()}. Default 100. */
+	public int maxDecisions = 100;
+
+	/** Number of times the maximum size was increased. */
+	public volatile int growCount;
+	/** Number of times the maximum size was decreased. */
+	public volatile int shrinkCount;
+
+	/** Acquire wait times in the current interval. */
+	protected final TimeHistogram acquireWaits = new TimeHistogram();
+	protected final ConcurrentLinkedQueue<Decision> decisions = new ConcurrentLinkedQueue<Decision>();
+	protected volatile Decision lastDecision;
+
+	/* Sample state, only used by the thread of the watcher. */
+	protected long intervalStart;
+	protected long lastSample;
+	protected long usedTimeMs;
+	protected long waitersTimeMs;
+	protected int peakUsed;
+	protected int lowIntervals;
+	protected int cooldown;
+
+	/** An adjustment of the pool size and the measurements it was based on. */
+	public static class Decision {
+
+		public final long time;
+		public final int oldMaxSize;
+		public final int maxSize;
+		public final int oldMinSize;
+		public final int minSize;
+		/** Time-weighted used connections / maximum size. */
+		public final double utilization;
+		/** The {@link PoolSizeController#waitQuantile} acquire wait time. */
+		public final long acquireWaitMs;
+		/** Time-weighted average amount of threads waiting for a connection. */
+		public final double averageWaiters;
+		public final int peakUsed;
+		public final String reason;
+
+		public Decision(final long time, final int oldMaxSize, final int maxSize, final int oldMinSize, final int minSize,
+				final double utilization, final long acquireWaitMs, final double averageWaiters, final int peakUsed, final String reason) {
+			super();
+			this.time = time;
+			this.oldMaxSize = oldMaxSize;
+			this.maxSize = maxSize;
+			this.oldMinSize = oldMinSize;
+			this.minSize = minSize;
+			this.utilization = utilization;
+			this.acquireWaitMs = acquireWaitMs;
+			this.averageWaiters = averageWaiters;
+			this.peakUsed = peakUsed;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return reason + ": maximum size " + oldMaxSize + " -> " + maxSize + ", minimum size " + oldMinSize + " -> " + minSize
+					+ " (utilization: " + Math.round(utilization * 100.0) + "%, acquire wait: " + acquireWaitMs
+					+ " ms, average waiters: " + Math.round(averageWaiters * 10.0) / 10.0 + ", peak used: " + peakUsed + ")";
+		}
+	}
+
+	/** Registers the time an acquire waited for a connection, called by the pool. */
+	public void acquired(final long waitTimeMs) {
+
+		acquireWaits.record(waitTimeMs);
+	}
+
+	/** Samples the pool and adjusts the pool size at the end of an interval, called by the {@link DbPoolWatcher}. */
+	public void check(final DbPool pool, final long now) {
+
+		final int used = pool.getCountUsedConnections();
+		final int waiters = pool.acquireWaiters.get();
+		if (intervalStart == 0L) {
+			intervalStart = lastSample = now;
+		}
+		final long elapsed = now - lastSample;
+		lastSample = now;
+		usedTimeMs += used * elapsed;
+		waitersTimeMs += waiters * elapsed;
+		peakUsed = Math.max(peakUsed, used);
+		final long intervalMs = now - intervalStart;
+		if (intervalMs < adjustIntervalMs) return;
+		adjust(pool, now, intervalMs);
+		intervalStart = now;
+		usedTimeMs = waitersTimeMs = 0L;
+		peakUsed = used;
+		acquireWaits.clear();
+	}
+
+	protected void adjust(final DbPool pool, final long now, final long intervalMs) {
+
+		final int oldMax = pool.getEffectiveMaxSize();
+		final int oldMin = pool.getEffectiveMinSize();
+		final double averageUsed = usedTimeMs / (double) intervalMs;
+		final double utilization = averageUsed / Math.max(1, oldMax);
+		final double averageWaiters = waitersTimeMs / (double) intervalMs;
+		final long waitMs = acquireWaits.getQuantileMs(waitQuantile);
+		final boolean waited = (waitMs > targetWaitMs || averageWaiters >= 1.0);
+		if (cooldown > 0) {
+			cooldown--;
+			return;
+		}
+		final int step = Math.max(1, (int) Math.ceil(oldMax * stepFraction));
+		final int usedMin = Math.min(maxMinSize, Math.max(minMinSize, (int) Math.ceil(averageUsed)));
+		int newMax = oldMax;
+		int newMin = oldMin;
+		String reason = null;
+		if (waited && utilization >= growUtilization) {
+			lowIntervals = 0;
+			newMax = Math.min(maxMaxSize, oldMax + step);
+			newMin = Math.max(oldMin, usedMin);
+			reason = "Acquires waited";
+		} else if (!waited && utilization < shrinkUtilization) {
+			if (++lowIntervals >= shrinkIntervals) {
+				lowIntervals = 0;
+				newMax = Math.max(minMaxSize, Math.max(oldMax - step, peakUsed + 1));
+				newMin = Math.min(oldMin, usedMin);
+				reason = "Low utilization";
+			}
+		} else {
+			lowIntervals = 0;
+		}
+		// Bring sizes configured outside the bounds within the bounds.
+		newMax = Math.min(maxMaxSize, Math.max(minMaxSize, newMax));
+		newMin = Math.min(newMax, Math.min(maxMinSize, Math.max(minMinSize, newMin)));
+		if (newMax == oldMax && newMin == oldMin) return;
+		if (reason == null) reason = "Out of bounds";
+		pool.setEffectiveSizes(newMin, newMax);
+		// Only updated by the thread of the watcher.
+		if (newMax > oldMax) growCount++;
+		if (newMax < oldMax) shrinkCount++;
+		cooldown = cooldownIntervals;
+		final Decision d = new Decision(now, oldMax, newMax, oldMin, newMin, utilization, waitMs, averageWaiters, peakUsed, reason);
+		decisions.add(d);
+		while (decisions.size() > Math.max(1, maxDecisions)) decisions.poll();
+		lastDecision = d;
+		log.info("Adjusted size of database pool " + pool + ". " + d);
+		if (newMax > oldMax) pool.requestConnectionsForWaiters();
+	}
+
+	/** The adjustments made (oldest first), at most {@link #maxDecisions}. */
+	public List<Decision> getDecisions() { return new ArrayList<Decision>(decisions); }
+
+	/** The last adjustment made, null if there was none. */
+	public Decision getLastDecision() { return lastDecision; }
+}
@@ -18,7 +18,12 @@
 */
 package nl.intercommit.dbpool;
 
+import java.lang.ref.Reference;
 import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,21 +32,82 @@ import org.slf4j.LoggerFactory;
  * Most of these properties are used by the {@link DbPoolWatcher}. */
 public class PooledConnection {
 
+	/** State of a connection that is ready to be leased. */
+	public static final int STATE_IDLE = 0;
+	/** State of a connection that is leased (or being created). */
+	public static final int STATE_LEASED = 1;
+	/** State of an idle connection that is claimed by the pool (e.g. by the {@link DbPoolWatcher}). */
+	public static final int STATE_RESERVED = -1;
+	/** State of a connection that is removed from the pool. */
+	public static final int STATE_REMOVED = -2;
+
 	protected Logger log = LoggerFactory.getLogger(getClass());
 	
 	/** The connection to the database which is pooled. */
 	public final Connection dbConn;
+	/** 
+	 * The state of this connection, one of the STATE-constants. 
+	 * State changes are claimed using compare-and-set (see {@link ConnectionBag}).
+	 */
+	protected final AtomicInteger state = new AtomicInteger(STATE_LEASED);
 	protected Thread user;
 	/** Start-time for this connection to be leased or being idle. */
 	protected long waitStart;
+	/** 
+	 * False from the moment this connection is released until the next lease is set up by the pool (see {@link DbPool#leased(PooledConnection, long, StackTraceElement[], long)}):
+	 * a claimed connection is in leased state before {@link #waitStart} and {@link #user} are updated.
+	 */
+	protected volatile boolean leaseReady;
+	/** Start-time of the current lease (unlike {@link #waitStart}, not reset when the lease expires). */
+	protected long leaseStart;
 	protected boolean dirty;
-	protected boolean leased;
 	protected long maxLeaseTimeMs;
 	/** 
 	 * Number of times {@link DbPoolWatcher#maxLeaseTimeMs} expired, used to determine
 	 * when to evict a connection (see {@link DbPoolWatcher#evictThreshold})
 	 */
 	protected int leaseExpiredCount;
+	/** True when a lease deadline is registered with the {@link DbPoolWatcher}. */
+	protected final AtomicBoolean leaseDeadlineSet = new AtomicBoolean();
+	/** The last lease deadline registered with the {@link DbPoolWatcher}, earlier registered deadlines are ignored. */
+	protected volatile long leaseDeadline;
+	/** True when an idle deadline is registered with the {@link DbPoolWatcher}. */
+	protected final AtomicBoolean idleDeadlineSet = new AtomicBoolean();
+	/** True when a keepalive time is registered with the {@link DbPoolWatcher}. */
+	protected final AtomicBoolean keepAliveDeadlineSet = new AtomicBoolean();
+	/** The last time this connection was validated successfully. */
+	protected volatile long lastValidated;
+	/** 
+	 * True when a SQLException was thrown by the connection (or one of its statements) via a {@link ConnectionProxy} during a lease,
+	 * the connection is then validated before it is leased again (see {@link ValidationPolicy}).
+	 */
+	protected volatile boolean leaseError;
+	/** The call site that acquired this connection, null if not captured (see {@link DbPool#acquireSiteSampleRate}). */
+	protected volatile StackTraceElement[] acquireSite;
+	/** The {@link LeaseProfiler} statistics for the current lease, null if not profiled. */
+	protected volatile LeaseProfiler.Site leaseSite;
+	/** Detects when the application no longer references this leased connection, see {@link DbPool#reclaimUnreachable}. */
+	protected volatile Reference<?> leaseRef;
+	/** The statement in use, see {@link DbPoolWatcher#cancelExpired}. */
+	protected volatile Statement statement;
+	/** What was done to free this connection after the lease expired, one of the ESCALATION-constants in {@link DbPoolWatcher}. */
+	protected volatile int escalation;
+	/** Session properties and transaction state changed via a {@link ConnectionProxy}, null if not tracked. */
+	protected SessionState sessionState;
+	/** The time this pooled connection was created, see {@link DbPool#maxLifeTimeMs}. */
+	protected final long createdTime = System.currentTimeMillis();
+	/** Number of times this connection was leased, see {@link DbPool#maxLeases}. */
+	protected volatile int leaseCount;
+	/** Random fraction used to spread the retirement of connections, see {@link DbPool#retireJitter}. */
+	protected final double retireJitter = Math.random();
+	/** True when this connection is to be retired and counts as retiring in the pool (see {@link DbPool#prepareRetire(PooledConnection)}). */
+	protected final AtomicBoolean retiring = new AtomicBoolean();
+	/** The new connection requested to replace this connection before it is retired, null if not requested. */
+	protected volatile Future<PooledConnection> replacement;
+	/** The {@link DbPool#generation} at the time this connection was created, see {@link DbPool#flushRolling()}. */
+	protected int generation;
+	/** The factory that created this connection, used to validate and close it (see {@link DbPool#swapFactory(DbConnFactory)}). */
+	protected DbConnFactory factory;
 
 	/** Creates this pooled connection and sets it's state to leased. */
 	public PooledConnection(final Connection dbConn, final long leaseTimeOutMs) {
@@ -66,9 +132,19 @@ public class PooledConnection {
 	public long getWaitTime() { return (System.currentTimeMillis() - waitStart); }
 	public void resetWaitStart() { waitStart = System.currentTimeMillis(); }
 	
+	public int getState() { return state.get(); }
+	public void setState(final int newState) { state.set(newState); }
+	/** @return True if the state was updated to newState. */
+	public boolean compareAndSetState(final int expectedState, final int newState) { 
+		return state.compareAndSet(expectedState, newState); 
+	}
+	
+	/** 
+	 * Updates the lease-properties (user, lease time-out and wait-start) of this connection.
+	 * Does not change the state of this connection, the state is managed by the {@link ConnectionBag}. 
+	 */
 	public void setLeased(final boolean leased, final long leaseTimeOutMs) {
 
-		this.leased = leased;
 		if (leased) {
 			setMaxLeaseTimeMs(leaseTimeOutMs);
 			user = Thread.currentThread();
@@ -76,9 +152,17 @@ public class PooledConnection {
 		} else {
 			if (log.isTraceEnabled()) log.trace(user + " released " + dbConn);
 			user = null;
+			leaseReady = false;
 		}
 		waitStart = System.currentTimeMillis();
+		if (leased) leaseStart = waitStart;
 	}
 	
-	public boolean isLeased() { return leased; }
+	public boolean isLeased() { return (state.get() == STATE_LEASED); }
+	
+	/** @return The call site that acquired this connection, null if not captured (see {@link DbPool#acquireSiteSampleRate}). */
+	public StackTraceElement[] getAcquireSite() { return acquireSite; }
+	
+	/** @return The tracked session state, null if the connection was not used via a {@link ConnectionProxy}. */
+	public SessionState getSessionState() { return sessionState; }
 }
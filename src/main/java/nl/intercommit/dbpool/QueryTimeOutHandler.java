@@ -0,0 +1,87 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+/**
+ * Handles the calls to the statement proxies used by {@link DbConn} to enforce the {@link DbPool#queryTimeOutMs}:
+ * the time-out starts when a statement is executed and stops when the execution has finished,
+ * so that an open statement that is not executing is never cancelled.
+ * <br>A connection proxy with this handler returns statement proxies for the statements it creates,
+ * which is used to time the statement of a {@link NamedParameterStatement}.
+ * @author frederikw
+ *
+ */
+public class QueryTimeOutHandler implements InvocationHandler {
+
+	protected final DbPool pool;
+	protected final Object target;
+
+	public QueryTimeOutHandler(final DbPool pool, final Object target) {
+		super();
+		this.pool = pool;
+		this.target = target;
+	}
+
+	/** @return A proxy that starts the query time-out when the statement is executed. */
+	public static PreparedStatement newProxy(final DbPool pool, final PreparedStatement ps) {
+		return (PreparedStatement) newProxy(pool, ps, PreparedStatement.class);
+	}
+
+	/** @return A proxy that returns statement proxies (see {@link #newProxy(DbPool, PreparedStatement)}). */
+	public static Connection newProxy(final DbPool pool, final Connection c) {
+		return (Connection) newProxy(pool, c, Connection.class);
+	}
+
+	protected static Object newProxy(final DbPool pool, final Object target, final Class<?> type) {
+		return Proxy.newProxyInstance(QueryTimeOutHandler.class.getClassLoader(), new Class<?>[] { type }, 
+				new QueryTimeOutHandler(pool, target));
+	}
+
+	@Override
+	public Object invoke(final Object p, final Method method, final Object[] args) throws Throwable {
+
+		final String name = method.getName();
+		if (target instanceof Statement && name.startsWith("execute")) {
+			final StatementTimer.Timeout timeOut = pool.startQueryTimer((Statement) target);
+			try {
+				return ConnectionProxy.invokeTarget(target, method, args);
+			} finally {
+				if (timeOut != null) timeOut.cancel();
+			}
+		} else if ("equals".equals(name)) {
+			return (p == args[0]);
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(p);
+		} else if ("unwrap".equals(name) || "isWrapperFor".equals(name)) {
+			if (((Class<?>) args[0]).isInstance(target)) return ("unwrap".equals(name) ? target : Boolean.TRUE);
+		}
+		final Object result = ConnectionProxy.invokeTarget(target, method, args);
+		if (target instanceof Connection && result instanceof Statement) {
+			return newProxy(pool, result, method.getReturnType());
+		}
+		return result;
+	}
+}
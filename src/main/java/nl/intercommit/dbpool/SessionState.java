@@ -0,0 +1,125 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Keeps track of the session properties and transaction state of a pooled connection
+ * that are changed via a {@link ConnectionProxy}.
+ * <br>The default value of a session property is read from the database connection
+ * the first time the property is changed (drivers usually do not need a round trip for this).
+ * When the connection is released, {@link #reset()} restores only the changed properties
+ * and only does a rollback when a statement was executed while auto-commit was off
+ * and no commit or rollback followed.
+ * <br>A session state is used by one thread at a time (the thread leasing the connection).
+ * @author frederikw
+ *
+ */
+public class SessionState {
+
+	public static final int AUTO_COMMIT = 1;
+	public static final int TRANSACTION_ISOLATION = 2;
+	public static final int READ_ONLY = 4;
+	public static final int CATALOG = 8;
+
+	protected final Connection dbConn;
+	/** The properties for which the default value is known. */
+	protected int defaultsKnown;
+	/** The properties changed during the current lease. */
+	protected int changed;
+	protected boolean defaultAutoCommit;
+	protected int defaultTransactionIsolation;
+	protected boolean defaultReadOnly;
+	protected String defaultCatalog;
+	/** The current auto-commit value, only valid when the default auto-commit value is known. */
+	protected boolean autoCommit;
+	protected boolean transactionPending;
+
+	public SessionState(final Connection dbConn) {
+		super();
+		this.dbConn = dbConn;
+	}
+
+	/** Reads the default value of a property if it is not yet known. */
+	protected void readDefault(final int property) throws SQLException {
+
+		if ((defaultsKnown & property) != 0) return;
+		switch (property) {
+		case AUTO_COMMIT:
+			defaultAutoCommit = dbConn.getAutoCommit();
+			autoCommit = defaultAutoCommit;
+			break;
+		case TRANSACTION_ISOLATION: defaultTransactionIsolation = dbConn.getTransactionIsolation(); break;
+		case READ_ONLY: defaultReadOnly = dbConn.isReadOnly(); break;
+		case CATALOG: defaultCatalog = dbConn.getCatalog(); break;
+		default: throw new IllegalArgumentException("Unknown session property " + property);
+		}
+		defaultsKnown |= property;
+	}
+
+	/** Called before a property is changed. */
+	public void beforeChange(final int property) throws SQLException {
+
+		readDefault(property);
+		changed |= property;
+	}
+
+	/** Called after auto-commit was changed, setting auto-commit to true commits a pending transaction. */
+	public void autoCommitChanged(final boolean newAutoCommit) {
+
+		autoCommit = newAutoCommit;
+		if (newAutoCommit) transactionPending = false;
+	}
+
+	/** Called before a statement is executed. */
+	public void beforeExecute() throws SQLException {
+
+		readDefault(AUTO_COMMIT);
+		if (!autoCommit) transactionPending = true;
+	}
+
+	/** Called after a commit or rollback. */
+	public void transactionEnded() { transactionPending = false; }
+
+	/** @return True if a statement was executed in a transaction that was not committed or rolled back. */
+	public boolean isTransactionPending() { return transactionPending; }
+
+	/** @return The properties changed during the current lease. */
+	public int getChanged() { return changed; }
+
+	/** Rolls back a pending transaction and restores the changed properties to their default values. */
+	public void reset() throws SQLException {
+
+		if (transactionPending) {
+			dbConn.rollback();
+			transactionPending = false;
+		}
+		if (changed == 0) return;
+		if ((changed & TRANSACTION_ISOLATION) != 0) dbConn.setTransactionIsolation(defaultTransactionIsolation);
+		if ((changed & READ_ONLY) != 0) dbConn.setReadOnly(defaultReadOnly);
+		if ((changed & CATALOG) != 0 && defaultCatalog != null) dbConn.setCatalog(defaultCatalog);
+		if ((changed & AUTO_COMMIT) != 0 && autoCommit != defaultAutoCommit) {
+			dbConn.setAutoCommit(defaultAutoCommit);
+			autoCommit = defaultAutoCommit;
+		}
+		changed = 0;
+	}
+}
@@ -0,0 +1,247 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cancels statements that run longer than the query time-out of a pool (see {@link DbPool#queryTimeOutMs}).
+ * <br>Time-outs are kept in a hashed wheel: a ring of buckets that is advanced by one thread every {@link #tickMs}.
+ * Scheduling and cancelling a time-out does not lock and costs the same for any amount of time-outs,
+ * a time-out fires within one tick after it expired.
+ * This replaces <code>Statement.setQueryTimeout</code>, for which some drivers start a timer (thread) per statement.
+ * <br>The statement is cancelled by a thread of the pool's {@link ConnectionCloser},
+ * so that a slow cancel (some drivers open a new connection to cancel a query) does not delay other time-outs.
+ * The statement is only cancelled while the execution that started the time-out is still running
+ * (e.g. a MySQL <code>KILL QUERY</code> would otherwise kill the next statement executed by the connection).
+ * <br>Use {@link #getShared()} for a timer shared by all pools in the JVM.
+ * @author frederikw
+ *
+ */
+public class StatementTimer implements Runnable {
+
+	protected Logger log = LoggerFactory.getLogger(getClass());
+
+	/** Tick duration of the shared timer, must be set before {@link #getShared()} is called. Default 100 ms. */
+	public static long sharedTickMs = 100L;
+	/** Amount of buckets of the shared timer, must be set before {@link #getShared()} is called. Default 512. */
+	public static int sharedWheelSize = 512;
+
+	public static final int STATE_WAITING = 0;
+	public static final int STATE_CANCELLED = 1;
+	public static final int STATE_EXPIRED = 2;
+
+	/** Execution state of a time-out: the statement is executing. */
+	public static final int EXECUTING = 0;
+	/** Execution state of a time-out: the execution has finished (or the statement was cancelled). */
+	public static final int EXECUTION_ENDED = 1;
+	/** Execution state of a time-out: the statement is being cancelled. */
+	public static final int EXECUTION_CANCELLING = 2;
+
+	protected final long tickMs;
+	/** The buckets with time-outs, only used by the timer thread. */
+	protected final List<List<Timeout>> wheel;
+	/** Time-outs scheduled since the last tick. */
+	protected final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	protected final ReentrantLock startLock = new ReentrantLock();
+	protected volatile Thread timerThread;
+	protected volatile boolean stop;
+	protected long startTime;
+	/** The next tick to process. */
+	protected long tick;
+
+	public StatementTimer(final long tickMs, final int wheelSize) {
+		super();
+		this.tickMs = Math.max(1L, tickMs);
+		wheel = new ArrayList<List<Timeout>>(Math.max(1, wheelSize));
+		for (int i = 0; i < Math.max(1, wheelSize); i++) {
+			wheel.add(new LinkedList<Timeout>());
+		}
+	}
+
+	private static class SharedHolder {
+		static final StatementTimer SHARED = new StatementTimer(sharedTickMs, sharedWheelSize);
+	}
+
+	/** The timer shared by all pools, created when first used. */
+	public static StatementTimer getShared() { return SharedHolder.SHARED; }
+
+	/** A scheduled time-out for a statement. */
+	public static class Timeout {
+
+		protected final DbPool pool;
+		protected final Statement statement;
+		protected final long deadline;
+		protected final AtomicInteger state = new AtomicInteger(STATE_WAITING);
+		/** One of the EXECUTION-constants, a statement is only cancelled while it is executing. */
+		protected final AtomicInteger execution = new AtomicInteger(EXECUTING);
+		/** Amount of wheel rotations left before the time-out expires, only used by the timer thread. */
+		protected long rounds;
+
+		public Timeout(final DbPool pool, final Statement statement, final long deadline) {
+			super();
+			this.pool = pool;
+			this.statement = statement;
+			this.deadline = deadline;
+		}
+
+		/** 
+		 * Stops the time-out and ends the execution, call when the statement has finished.
+		 * When the statement is being cancelled, waits for the cancel to finish 
+		 * so that the cancel cannot affect a next execution.
+		 * @return False if the time-out already expired (or was cancelled). 
+		 */
+		public boolean cancel() {
+
+			final boolean stopped = state.compareAndSet(STATE_WAITING, STATE_CANCELLED);
+			if (!execution.compareAndSet(EXECUTING, EXECUTION_ENDED)) {
+				while (execution.get() == EXECUTION_CANCELLING) LockSupport.parkNanos(this, 100000L);
+			}
+			return stopped;
+		}
+		
+		/** @return False if the execution already ended, else the statement must be cancelled and {@link #cancelled()} must be called. */
+		protected boolean startCancel() { return execution.compareAndSet(EXECUTING, EXECUTION_CANCELLING); }
+		
+		/** Ends the execution after the statement was cancelled. */
+		protected void cancelled() { execution.set(EXECUTION_ENDED); }
+
+		public boolean isExpired() { return (state.get() == STATE_EXPIRED); }
+	}
+
+	/**
+	 * Schedules the cancellation of the statement after timeOutMs.
+	 * Call {@link Timeout#cancel()} when the statement has finished.
+	 */
+	public Timeout schedule(final DbPool pool, final Statement statement, final long timeOutMs) {
+
+		final Timeout t = new Timeout(pool, statement, System.currentTimeMillis() + timeOutMs);
+		scheduled.add(t);
+		if (timerThread == null) start();
+		return t;
+	}
+
+	protected void start() {
+
+		startLock.lock();
+		try {
+			if (timerThread != null) return;
+			stop = false;
+			// Continue where a stopped timer thread left off.
+			startTime = System.currentTimeMillis() - tick * tickMs;
+			final Thread t = new DbPoolThreadFactory("DbPoolStatementTimer", true).newThread(this);
+			timerThread = t;
+			t.start();
+		} finally {
+			startLock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			while (!stop) {
+				final long sleepTime = startTime + (tick + 1L) * tickMs - System.currentTimeMillis();
+				if (sleepTime > 0L) Thread.sleep(sleepTime);
+				transferScheduled();
+				expire(wheel.get((int) (tick % wheel.size())));
+				tick++;
+			}
+		} catch (InterruptedException ie) {
+			if (log.isDebugEnabled()) log.debug("Statement timer interrupted.");
+		} catch (Throwable t) {
+			log.error("Statement timer no longer operational due to unexpected error.", t);
+		} finally {
+			startLock.lock();
+			try {
+				timerThread = null;
+			} finally {
+				startLock.unlock();
+			}
+		}
+	}
+
+	/** Puts the time-outs scheduled since the last tick in their bucket. */
+	protected void transferScheduled() {
+
+		Timeout t;
+		while ((t = scheduled.poll()) != null) {
+			if (t.state.get() != STATE_WAITING) continue;
+			final long deadlineTick = Math.max(tick, (t.deadline - startTime + tickMs - 1L) / tickMs);
+			t.rounds = (deadlineTick - tick) / wheel.size();
+			wheel.get((int) (deadlineTick % wheel.size())).add(t);
+		}
+	}
+
+	/** Cancels the statements of the expired time-outs in the bucket and removes cancelled time-outs. */
+	protected void expire(final List<Timeout> bucket) {
+
+		final Iterator<Timeout> timeOuts = bucket.iterator();
+		while (timeOuts.hasNext()) {
+			final Timeout t = timeOuts.next();
+			if (t.state.get() != STATE_WAITING) {
+				timeOuts.remove();
+			} else if (t.rounds > 0L) {
+				t.rounds--;
+			} else {
+				timeOuts.remove();
+				if (t.state.compareAndSet(STATE_WAITING, STATE_EXPIRED)) cancel(t);
+			}
+		}
+	}
+
+	protected void cancel(final Timeout t) {
+
+		t.pool.queryTimeOuts.incrementAndGet();
+		t.pool.getCloser().execute(new Runnable() {
+			@Override public void run() {
+				// The execution could have finished after the time-out expired.
+				if (!t.startCancel()) return;
+				try {
+					t.statement.cancel();
+				} catch (SQLException sqle) {
+					log.warn("Failed to cancel statement after query time-out: " + sqle);
+				} finally {
+					t.cancelled();
+				}
+			}
+		});
+	}
+
+	/** Stops the timer thread, scheduled time-outs no longer fire until a new time-out is scheduled. */
+	public void shutdown() {
+
+		stop = true;
+		final Thread t = timerThread;
+		if (t != null) t.interrupt();
+	}
+}
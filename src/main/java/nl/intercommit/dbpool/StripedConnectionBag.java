@@ -0,0 +1,96 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import static nl.intercommit.dbpool.PooledConnection.STATE_IDLE;
+import static nl.intercommit.dbpool.PooledConnection.STATE_LEASED;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ConnectionBag} for large pools: the connections are divided over stripes (sub-pools).
+ * <br>A thread searches for an idle connection in its "home" stripe (selected by a hash of the thread ID) first
+ * and then steals from the neighbouring stripes. This spreads threads over different connections
+ * instead of having all threads compete for the first idle connections in one shared list.
+ * <br>New connections are added to the stripe with the least connections.
+ * Waiters, the list of all connections ({@link #values()}) and the pool limits are not striped:
+ * a thread only waits when no stripe has an idle connection and released connections are still
+ * handed to the thread that has been waiting the longest.
+ * @author frederikw
+ *
+ */
+public class StripedConnectionBag extends ConnectionBag {
+
+	protected final CopyOnWriteArrayList<PooledConnection>[] stripes;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public StripedConnectionBag(final int stripeCount) {
+		super();
+		stripes = new CopyOnWriteArrayList[Math.max(1, stripeCount)];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new CopyOnWriteArrayList<PooledConnection>();
+		}
+	}
+
+	/** Claims the first idle connection from the home stripe of the current thread, else steals from the other stripes. */
+	@Override
+	protected PooledConnection scanShared() {
+
+		final int home = getHomeStripe();
+		for (int i = 0; i < stripes.length; i++) {
+			for (final PooledConnection pc : stripes[(home + i) % stripes.length]) {
+				if (pc.compareAndSetState(STATE_IDLE, STATE_LEASED)) return pc;
+			}
+		}
+		return null;
+	}
+
+	/** The stripe that the current thread searches first. */
+	protected int getHomeStripe() {
+
+		// Spread consecutive thread IDs (Fibonacci hashing).
+		final int h = (int) (Thread.currentThread().getId() * 0x9E3779B9L);
+		return (h >>> 1) % stripes.length;
+	}
+
+	@Override
+	public void add(final PooledConnection pc) {
+
+		// Add to a stripe first so that the connection can be claimed as soon as it is handed off or idle.
+		CopyOnWriteArrayList<PooledConnection> smallest = stripes[0];
+		for (int i = 1; i < stripes.length; i++) {
+			if (stripes[i].size() < smallest.size()) smallest = stripes[i];
+		}
+		smallest.add(pc);
+		super.add(pc);
+	}
+
+	@Override
+	public boolean remove(final PooledConnection pc) {
+
+		if (!super.remove(pc)) return false;
+		for (final CopyOnWriteArrayList<PooledConnection> stripe : stripes) {
+			if (stripe.remove(pc)) break;
+		}
+		return true;
+	}
+
+	/** Amount of stripes. */
+	public int getStripeCount() { return stripes.length; }
+}
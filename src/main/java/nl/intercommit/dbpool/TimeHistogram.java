@@ -0,0 +1,88 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in milliseconds used to estimate quantiles (e.g. the 99th percentile of lease durations).
+ * <br>Bucket i contains durations up to 2^(i/4) ms, so an estimated quantile is at most 19% too high.
+ * Recording a duration does not lock, concurrent updates during {@link #decay()} or {@link #clear()} can be lost
+ * (the histogram is an estimate).
+ * @author frederikw
+ *
+ */
+public class TimeHistogram {
+
+	/** Amount of buckets, the last bucket contains all durations longer than 2^(127/4) ms. */
+	public static final int BUCKETS = 128;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** Registers a duration. */
+	public void record(final long timeMs) { counts.incrementAndGet(getBucket(timeMs)); }
+
+	protected static int getBucket(final long timeMs) {
+
+		if (timeMs <= 1L) return 0;
+		return Math.min(BUCKETS - 1, (int) Math.ceil(4.0 * Math.log(timeMs) / Math.log(2.0)));
+	}
+
+	/** The maximum duration of bucket i. */
+	protected static long getBucketLimit(final int i) { return (long) Math.ceil(Math.pow(2.0, i / 4.0)); }
+
+	/** Amount of registered durations. */
+	public long getCount() {
+
+		long total = 0L;
+		for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+		return total;
+	}
+
+	/** 
+	 * @param q The quantile (e.g. 0.99).
+	 * @return The estimated duration for the quantile (rounded up to a power of 2^(1/4)), 0 if there are no durations.
+	 */
+	public long getQuantileMs(final double q) {
+
+		final long total = getCount();
+		if (total == 0L) return 0L;
+		final long target = Math.max(1L, (long) Math.ceil(q * total));
+		long count = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+			if (count >= target) return getBucketLimit(i);
+		}
+		return getBucketLimit(BUCKETS - 1);
+	}
+
+	/** Halves the amount of durations in each bucket, so that older durations weigh less. */
+	public void decay() {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			final long count = counts.get(i);
+			if (count > 1L) counts.addAndGet(i, -(count / 2L));
+		}
+	}
+
+	/** Removes all durations. */
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++) counts.set(i, 0L);
+	}
+}
@@ -0,0 +1,91 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines if a connection must be validated before it is leased by the {@link DbPool}.
+ * <br>A connection that was released less than the trust time ago is not validated
+ * (the connection was working fine a moment ago). The trust time starts at {@link #maxTrustTimeMs}.
+ * <br>When a validation fails, the trust time is lowered to less than half the idle time of the invalid connection
+ * and all connections are validated during {@link #distrustTimeMs}.
+ * Each successful validation increases the trust time a little until it is back at {@link #maxTrustTimeMs}.
+ * <br>A connection that threw a SQLException via a {@link ConnectionProxy} during its last lease is always validated.
+ * <br>Set {@link #maxTrustTimeMs} to 0 to always validate connections.
+ * <br>Connections validated recently (e.g. in the background, see {@link DbPoolWatcher#keepAliveIntervalMs})
+ * can also be trusted, see {@link #validatedTrustTimeMs}.
+ * @author frederikw
+ *
+ */
+public class ValidationPolicy {
+
+	protected Logger log = LoggerFactory.getLogger(getClass());
+
+	/** Maximum time since release for which a connection is not validated. Default 500 milliseconds. */
+	public long maxTrustTimeMs = 500L;
+	/** Minimum trust time, also when validations fail. Default 0 (always validate). */
+	public long minTrustTimeMs;
+	/** After a failed validation, all connections are validated for this period. Default 10 seconds. */
+	public long distrustTimeMs = 10000L;
+	/** Maximum time since the last successful validation for which a connection is not validated. Default 0 (not used). */
+	public long validatedTrustTimeMs;
+
+	/** Current trust time, a negative value means {@link #maxTrustTimeMs} is used. */
+	protected volatile long trustTimeMs = -1L;
+	/** Time until which all connections are validated. */
+	protected volatile long distrustUntil;
+
+	/** The current time since release for which a connection is not validated. */
+	public long getTrustTimeMs() {
+
+		final long t = trustTimeMs;
+		return (t < 0L || t > maxTrustTimeMs ? maxTrustTimeMs : t);
+	}
+
+	/** @return True if the connection (just taken from the pool) must be validated. */
+	public boolean isValidationRequired(final PooledConnection pc) {
+
+		if (pc.leaseError) return true;
+		final long now = System.currentTimeMillis();
+		if (now < distrustUntil) return true;
+		if (now - pc.lastValidated < validatedTrustTimeMs) return false;
+		final long trustTime = getTrustTimeMs();
+		if (trustTime < 1L) return true;
+		return (now - pc.waitStart >= trustTime);
+	}
+
+	/** Updates the trust time after a connection was validated. */
+	public void validated(final PooledConnection pc, final boolean valid) {
+
+		final long trustTime = getTrustTimeMs();
+		if (valid) {
+			if (trustTime < maxTrustTimeMs) {
+				trustTimeMs = Math.min(maxTrustTimeMs, trustTime + Math.max(1L, maxTrustTimeMs / 64L));
+			}
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		final long idleTime = now - pc.waitStart;
+		trustTimeMs = Math.max(minTrustTimeMs, Math.min(trustTime, idleTime) / 2L);
+		distrustUntil = now + distrustTimeMs;
+		if (log.isDebugEnabled()) log.debug("Connection idle for " + idleTime + " ms. was invalid, trust time lowered to " + trustTimeMs);
+	}
+}
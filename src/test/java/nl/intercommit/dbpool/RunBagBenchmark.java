@@ -0,0 +1,166 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the acquire/release throughput of the {@link ConnectionBag} and the {@link StripedConnectionBag}
+ * with the previous engine (a LinkedBlockingDeque combined with a fair Semaphore).
+ * <br>No database connections are used, only the bookkeeping of the pool is measured.
+ * Run with (optional) arguments: poolSize measureTimeMs stripes.
+ * <br>Each run is done for 1, 2, 4 ... 256 threads, results are in operations (acquire + release) per millisecond.
+ * @author frederikw
+ *
+ */
+public class RunBagBenchmark {
+
+	public static void main(String[] args) {
+
+		final int poolSize = (args.length > 0 ? Integer.valueOf(args[0]) : 10);
+		final long measureTimeMs = (args.length > 1 ? Long.valueOf(args[1]) : 2000L);
+		final int stripes = (args.length > 2 ? Integer.valueOf(args[2]) : 8);
+		final RunBagBenchmark bench = new RunBagBenchmark();
+		// Warm up
+		bench.run(new DequeEngine(poolSize), 8, measureTimeMs / 2);
+		bench.run(new BagEngine(poolSize), 8, measureTimeMs / 2);
+		bench.run(new BagEngine(new StripedConnectionBag(stripes), poolSize), 8, measureTimeMs / 2);
+		System.out.println("Pool size: " + poolSize + ", operations per millisecond (acquire + release):");
+		System.out.println("threads\tdeque+semaphore\tconnection-bag\tstriped-bag (" + stripes + ")");
+		for (int threads = 1; threads <= 256; threads *= 2) {
+			final long dequeOps = bench.run(new DequeEngine(poolSize), threads, measureTimeMs);
+			final long bagOps = bench.run(new BagEngine(poolSize), threads, measureTimeMs);
+			final long stripedOps = bench.run(new BagEngine(new StripedConnectionBag(stripes), poolSize), threads, measureTimeMs);
+			System.out.println(threads + "\t" + (dequeOps / measureTimeMs) + "\t\t" + (bagOps / measureTimeMs) 
+					+ "\t\t" + (stripedOps / measureTimeMs));
+		}
+	}
+
+	/** The acquire and release operations to measure. */
+	interface Engine {
+		PooledConnection acquire() throws InterruptedException;
+		void release(PooledConnection pc);
+	}
+
+	/** The engine used by DbPool before the {@link ConnectionBag} was introduced. */
+	static class DequeEngine implements Engine {
+
+		final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+		final Semaphore connLeaser = new Semaphore(0, true);
+
+		DequeEngine(final int poolSize) {
+			for (int i = 0; i < poolSize; i++) {
+				idleConnections.add(new PooledConnection(null, 0L));
+				connLeaser.release();
+			}
+		}
+
+		@Override
+		public PooledConnection acquire() throws InterruptedException {
+
+			PooledConnection pc = null;
+			while (pc == null) {
+				if (connLeaser.tryAcquire(1000L, TimeUnit.MILLISECONDS)) pc = idleConnections.poll();
+			}
+			return pc;
+		}
+
+		@Override
+		public void release(final PooledConnection pc) {
+
+			idleConnections.addFirst(pc);
+			connLeaser.release();
+		}
+	}
+
+	static class BagEngine implements Engine {
+
+		final ConnectionBag bag;
+
+		BagEngine(final int poolSize) {
+			this(new ConnectionBag(), poolSize);
+		}
+
+		BagEngine(final ConnectionBag bag, final int poolSize) {
+			this.bag = bag;
+			for (int i = 0; i < poolSize; i++) {
+				final PooledConnection pc = new PooledConnection(null, 0L);
+				bag.add(pc);
+				bag.requite(pc);
+			}
+		}
+
+		@Override
+		public PooledConnection acquire() throws InterruptedException {
+
+			PooledConnection pc = null;
+			while (pc == null) pc = bag.borrow(1000L);
+			return pc;
+		}
+
+		@Override
+		public void release(final PooledConnection pc) {
+			bag.requite(pc);
+		}
+	}
+
+	/** @return The amount of acquire/release operations done by all threads within measureTimeMs. */
+	public long run(final Engine engine, final int threads, final long measureTimeMs) {
+
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long[] endTime = new long[1];
+		for (int i = 0; i < threads; i++) {
+			final Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long count = 0L;
+					try {
+						start.await();
+						while (System.currentTimeMillis() < endTime[0]) {
+							final PooledConnection pc = engine.acquire();
+							engine.release(pc);
+							count++;
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					} finally {
+						ops.addAndGet(count);
+						done.countDown();
+					}
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+		endTime[0] = System.currentTimeMillis() + measureTimeMs;
+		start.countDown();
+		try {
+			done.await();
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+		return ops.get();
+	}
+}
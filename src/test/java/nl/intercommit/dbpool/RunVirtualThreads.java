@@ -0,0 +1,115 @@
+/*  Copyright 2011 InterCommIT b.v.
+*
+*  This file is part of the "DbPool" project hosted on https://github.com/intercommit/DbPool
+*
+*  DbPool is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU Lesser General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  any later version.
+*
+*  DbPool is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU Lesser General Public License for more details.
+*
+*  You should have received a copy of the GNU Lesser General Public License
+*  along with DbPool.  If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package nl.intercommit.dbpool;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of a pool with 50 connections shared by 10 000 virtual threads (Java 21 and higher).
+ * Each task acquires a connection, executes a query, simulates some I/O (sleep) and releases the connection.
+ * <br>Virtual threads are created via reflection, on older Java versions a fixed pool of platform threads is used.
+ * Run with (optional) arguments: tasks poolSize platformThreads.
+ * <br>Results are in operations (acquire + query + release) per second.
+ * @author frederikw
+ *
+ */
+public class RunVirtualThreads {
+
+	public static void main(String[] args) {
+
+		final int tasks = (args.length > 0 ? Integer.valueOf(args[0]) : 10000);
+		final int poolSize = (args.length > 1 ? Integer.valueOf(args[1]) : 50);
+		final int platformThreads = (args.length > 2 ? Integer.valueOf(args[2]) : 200);
+		final RunVirtualThreads bench = new RunVirtualThreads();
+		try {
+			final boolean virtual = (newVirtualThreadExecutor() != null);
+			if (virtual) {
+				// Warm up
+				bench.run("Warm up virtual threads", newVirtualThreadExecutor(), tasks, poolSize);
+				bench.run("Virtual threads", newVirtualThreadExecutor(), tasks, poolSize);
+			} else {
+				System.out.println("Virtual threads are not available (Java 21 or higher required).");
+			}
+			bench.run(platformThreads + " platform threads", Executors.newFixedThreadPool(platformThreads), tasks, poolSize);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** @return An executor that starts a virtual thread per task, or null if virtual threads are not available. */
+	public static ExecutorService newVirtualThreadExecutor() {
+
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public void run(final String desc, final ExecutorService executor, final int tasks, final int poolSize) throws Exception {
+
+		final DbPool pool = new DbPool();
+		final HSQLConnFactory factory = new HSQLConnFactory();
+		factory.dbUrl = "jdbc:hsqldb:mem:RunVirtualThreads";
+		pool.setFactory(factory);
+		pool.minSize = poolSize;
+		pool.maxSize = poolSize;
+		pool.maxAcquireTimeMs = 60000L;
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		try {
+			pool.open(true);
+			final long start = System.currentTimeMillis();
+			for (int i = 0; i < tasks; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						Connection c = null;
+						try {
+							c = pool.acquire();
+							final Statement s = c.createStatement();
+							s.execute("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+							s.close();
+							// Simulate network latency.
+							Thread.sleep(5L);
+							ops.incrementAndGet();
+						} catch (Exception e) {
+							failed.incrementAndGet();
+						} finally {
+							pool.release(c);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(5L, TimeUnit.MINUTES);
+			final long duration = Math.max(1L, System.currentTimeMillis() - start);
+			System.out.println(desc + ": " + tasks + " tasks on " + poolSize + " connections in " + duration
+					+ " ms., operations per second: " + (ops.get() * 1000L / duration) + ", failed: " + failed.get());
+		} finally {
+			executor.shutdownNow();
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestAcquireAsync {
+
+	@Test
+	public void testHandOff() {
+		
+		DbPool pool = new DbPool();
+		pool.maxSize = 1;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			final Connection[] acquired = new Connection[1];
+			final CountDownLatch done = new CountDownLatch(1);
+			pool.acquireAsync(1000L).addListener(new AcquireListener() {
+				@Override public void acquired(Connection dbConn) {
+					acquired[0] = dbConn;
+					done.countDown();
+				}
+				@Override public void failed(SQLException sqle) {
+					done.countDown();
+				}
+			});
+			assertEquals("Request waits for a connection", 1, done.getCount());
+			pool.release(c);
+			assertTrue("Request completed", done.await(1L, TimeUnit.SECONDS));
+			assertEquals("Released connection handed to async request", c, acquired[0]);
+			pool.release(acquired[0]);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testTimeOut() {
+		
+		DbPool pool = new DbPool();
+		pool.maxSize = 1;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			AcquireFuture f = pool.acquireAsync(50L);
+			try {
+				f.get();
+				throw new AssertionError("Acquire should time out.");
+			} catch (ExecutionException ee) {
+				assertTrue("Time-out error", ee.getCause() instanceof SQLException);
+			}
+			pool.release(c);
+			assertEquals("Connection available after time-out", 1, pool.getCountIdleConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testNoWait() {
+		
+		DbPool pool = new DbPool();
+		pool.maxSize = 1;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			long start = System.currentTimeMillis();
+			AcquireFuture f = pool.acquireAsync(0L);
+			try {
+				f.get(1L, TimeUnit.SECONDS);
+				throw new AssertionError("Acquire should not wait.");
+			} catch (ExecutionException ee) {
+				assertTrue("Time-out error", ee.getCause() instanceof SQLException);
+			}
+			assertTrue("Failed without waiting", System.currentTimeMillis() - start < 500L);
+			pool.release(c);
+			assertEquals("Connection available", 1, pool.getCountIdleConnections());
+			c = pool.acquireAsync(0L).get(1L, TimeUnit.SECONDS);
+			assertEquals("Idle connection acquired without waiting", 0, pool.getCountIdleConnections());
+			pool.release(c);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
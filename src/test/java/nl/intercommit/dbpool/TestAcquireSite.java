@@ -0,0 +1,69 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+
+import org.junit.Test;
+
+public class TestAcquireSite {
+
+	@Test
+	public void testSampledAcquireSite() {
+
+		DbPool pool = new DbPool();
+		pool.acquireSiteSampleRate = 2;
+		pool.acquireSiteMaxDepth = 3;
+		pool.setFactory(new HSQLConnFactory());
+		Connection c = null;
+		try {
+			pool.open(true);
+			c = pool.acquire();
+			assertNull("First acquire is not sampled", pool.connections.get(c).getAcquireSite());
+			pool.release(c);
+			c = pool.acquire();
+			StackTraceElement[] site = pool.connections.get(c).getAcquireSite();
+			assertNotNull("Second acquire is sampled", site);
+			assertEquals("Maximum depth", 3, site.length);
+			assertEquals("Acquire site is the caller of the pool", getClass().getName(), site[0].getClassName());
+			assertEquals("Acquire method", "testSampledAcquireSite", site[0].getMethodName());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.release(c);
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testSampleWithoutHibernate() throws Exception {
+
+		// Loads the pool classes in a class loader that cannot find the Hibernate classes.
+		final ClassLoader noHibernate = new ClassLoader(getClass().getClassLoader()) {
+			@Override protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (name.startsWith("org.hibernate.") || name.startsWith("nl.intercommit.dbpool.")) throw new ClassNotFoundException(name);
+				return super.loadClass(name, resolve);
+			}
+		};
+		URL classes = DbPool.class.getProtectionDomain().getCodeSource().getLocation();
+		URLClassLoader loader = new URLClassLoader(new URL[] { classes }, noHibernate);
+		Class<?> poolClass = loader.loadClass(DbPool.class.getName());
+		assertEquals("Pool class loaded without Hibernate", loader, poolClass.getClassLoader());
+		Object pool = poolClass.newInstance();
+		Field rate = poolClass.getField("acquireSiteSampleRate");
+		rate.setInt(pool, 1);
+		Method sample = poolClass.getDeclaredMethod("sampleAcquireSite");
+		sample.setAccessible(true);
+		StackTraceElement[] site = (StackTraceElement[]) sample.invoke(pool);
+		assertNotNull("Site sampled", site);
+		assertTrue("Site has frames", site.length > 0);
+	}
+}
@@ -0,0 +1,38 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestCancelExpired {
+
+	@Test
+	public void testCancelStatement() {
+
+		DbPool pool = new DbPool();
+		DbPoolWatcher poolWatcher = pool.getWatcher();
+		poolWatcher.maxLeaseTimeMs = 50L;
+		poolWatcher.timeOutWatchIntervalMs = 20L;
+		poolWatcher.evictThreshold = 0;
+		poolWatcher.cancelExpired = true;
+		pool.setFactory(new HSQLConnFactory());
+		DbConn db = null;
+		try {
+			pool.open(true);
+			db = new DbConn(pool);
+			db.setQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+			Thread.sleep(90L);
+			assertEquals("Statement cancelled after first expiry", 1, poolWatcher.cancelledCount);
+			db.close();
+			db = null;
+			assertEquals("Released after cancel", 1, poolWatcher.releasedAfterCancelCount.get());
+			assertEquals("Expired connection removed from pool", 0, pool.getCountOpenConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			if (db != null) db.close();
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+public class TestConnectionCloser {
+
+	@Test
+	public void testCloseInBackground() {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 2;
+		pool.setFactory(new HSQLConnFactory() {
+			@Override
+			public void close(final Connection dbConn, final boolean rollback) {
+				try { Thread.sleep(200L); } catch (InterruptedException ignored) {}
+				super.close(dbConn, rollback);
+			}
+		});
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			pool.setDirty(c);
+			long start = System.currentTimeMillis();
+			pool.release(c);
+			assertTrue("Release does not wait for close", System.currentTimeMillis() - start < 100L);
+			assertEquals("Connection waiting to be closed", 1, pool.getCloser().getBacklog());
+			assertEquals("Connection removed from pool", 1, pool.getCountOpenConnections());
+			pool.close();
+			assertEquals("Backlog closed when pool is closed", 0, pool.getCloser().getBacklog());
+			assertEquals("All connections closed", 2L, pool.getCloser().closedCount.get());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
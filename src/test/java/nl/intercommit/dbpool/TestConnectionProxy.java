@@ -0,0 +1,88 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+public class TestConnectionProxy {
+
+	@Test
+	public void testCloseReleases() {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		pool.useProxy = true;
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			assertEquals("Proxy handed out", true, ConnectionProxy.getHandler(c) != null);
+			assertEquals("Leased", 0, pool.getCountIdleConnections());
+			c.createStatement().close();
+			c.close();
+			assertEquals("Closing the proxy releases the connection", 1, pool.getCountIdleConnections());
+			assertEquals("Connection is not closed", 1, pool.getCountOpenConnections());
+			assertEquals("Released proxy is closed", true, c.isClosed());
+			c.close();
+			pool.release(c);
+			assertEquals("Releasing twice has no effect", 1, pool.getCountIdleConnections());
+			try {
+				c.createStatement();
+				fail("Use after release should fail");
+			} catch (SQLException expected) {
+				// expected
+			}
+			Connection c2 = pool.acquire();
+			assertEquals("New proxy for new lease", false, c == c2);
+			assertEquals("Unwrap gives database connection", false, ConnectionProxy.getHandler(c2.unwrap(Connection.class)) != null);
+			pool.release(c2);
+			assertEquals("Released via pool", 1, pool.getCountIdleConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testStatementAfterRelease() {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		pool.useProxy = true;
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			Statement s = c.createStatement();
+			PreparedStatement ps = c.prepareStatement("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+			c.close();
+			assertEquals("Released statement is closed", true, s.isClosed());
+			try {
+				s.execute("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+				fail("Statement use after release should fail");
+			} catch (SQLException expected) {
+				// expected
+			}
+			try {
+				ps.executeQuery();
+				fail("Prepared statement use after release should fail");
+			} catch (SQLException expected) {
+				// expected
+			}
+			s.close();
+			ps.close();
+			assertEquals("Connection still available", 1, pool.getCountIdleConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class TestDataSource {
+
+	@Test
+	public void testPooledConnections() {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		DataSource ds = new DbPoolDataSource(pool);
+		try {
+			Connection c = ds.getConnection();
+			assertEquals("Pool opened", 1, pool.getCountOpenConnections());
+			assertEquals("DataSource returns a proxy", true, ConnectionProxy.getHandler(c) != null);
+			c.createStatement().close();
+			c.close();
+			assertEquals("Connection returned to pool", 1, pool.getCountIdleConnections());
+			c = ds.getConnection();
+			c.close();
+			assertEquals("Connection re-used", 1, pool.getCountOpenConnections());
+			assertEquals("Unwrap to pool", pool, ds.unwrap(DbPool.class));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testOpenedPool() throws Exception {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		pool.minSize = 1;
+		try {
+			pool.open(true);
+			assertTrue("Pool open", pool.isOpen());
+			DbPoolDataSource ds = new DbPoolDataSource(pool);
+			ds.open();
+			Connection c = ds.getConnection();
+			c.close();
+			assertEquals("Opened pool not opened again", 1, pool.getCountOpenConnections());
+		} finally {
+			pool.close();
+		}
+		assertFalse("Pool closed", pool.isOpen());
+	}
+}
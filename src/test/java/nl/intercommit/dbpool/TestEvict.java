@@ -11,6 +11,35 @@ import org.junit.Test;
 
 public class TestEvict {
 
+	@Test
+	public void testLeaseBeingSetUp() throws Exception {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			// Set after open, the checks are done by the test instead of the watcher.
+			DbPoolWatcher poolWatcher = new DbPoolWatcher(pool);
+			poolWatcher.maxLeaseTimeMs = 50L;
+			pool.setWatcher(poolWatcher);
+			Connection c = pool.acquire();
+			PooledConnection pc = pool.connections.get(c);
+			// A claimed connection that still has the wait start of the previous lease.
+			pc.leaseReady = false;
+			pc.waitStart -= 1000L;
+			poolWatcher.checkLeaseTimeOut();
+			assertFalse("Lease being set up not expired", pc.isDirty());
+			assertEquals("Lease being set up not counted as expired", 0, pc.leaseExpiredCount);
+			pc.leaseReady = true;
+			Thread.sleep(60L);
+			poolWatcher.checkLeaseTimeOut();
+			assertTrue("Lease expired after set up", pc.isDirty());
+			pool.release(c);
+		} finally {
+			pool.close();
+		}
+	}
+
 	// TODO: write a test that evicts database connections while connections are being used.
 	@Test
 	public void testEvict() {
@@ -38,6 +67,7 @@ public class TestEvict {
 			Thread.sleep(200L);
 			assertEquals("After connection is evicted from pool, there should be no connections in the pool", 0, pool.getCountOpenConnections());
 			if (evictedIsClosed) {
+				TestUtil.waitForClosed(pool);
 				assertTrue("Evicted connection should be closed.", db.conn.isClosed());
 			} else if (evictedIsClosedWhenThreadHasTerminated || !evictedIsClosed) {
 				assertFalse("Evicted connection should not be closed.", db.conn.isClosed());
@@ -50,6 +80,7 @@ public class TestEvict {
 			if (db != null) {
 				Connection c = db.conn;
 				db.close();
+				TestUtil.waitForClosed(pool);
 				try {
 					assertTrue("An evicted connection should be closed when released.", c.isClosed());
 				} catch (SQLException e) {
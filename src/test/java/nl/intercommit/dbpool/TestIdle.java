@@ -2,6 +2,8 @@ package nl.intercommit.dbpool;
 
 import static org.junit.Assert.assertEquals;
 
+import java.sql.Connection;
+
 import org.junit.Test;
 
 public class TestIdle {
@@ -31,4 +33,63 @@ public class TestIdle {
 			pool.close();
 		}
 	}
+
+	@Test
+	public void testIdleCloseBatch() {
+		
+		DbPool pool = new DbPool();
+		pool.minSize = 5;
+		DbPoolWatcher poolWatcher = pool.getWatcher();
+		poolWatcher.maxIdleTimeMs = 20L;
+		poolWatcher.timeOutWatchIntervalMs = 10L;
+		poolWatcher.idleCloseBatchSize = 1;
+		poolWatcher.idleCloseIntervalMs = 200L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			pool.minSize = 1;
+			Thread.sleep(100L);
+			assertEquals("One idle connection closed per interval", 1, poolWatcher.idledCount);
+			Thread.sleep(200L);
+			assertEquals("Two intervals", 2, poolWatcher.idledCount);
+		} catch (Exception se) {
+			se.printStackTrace();
+			throw new AssertionError(se);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testKeepPeak() {
+		
+		DbPool pool = new DbPool();
+		pool.minSize = 1;
+		DbPoolWatcher poolWatcher = pool.getWatcher();
+		poolWatcher.maxIdleTimeMs = 20L;
+		poolWatcher.timeOutWatchIntervalMs = 10L;
+		poolWatcher.peakWindowMs = 300L;
+		poolWatcher.peakBuffer = 1;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection[] cs = new Connection[4];
+			for (int i = 0; i < cs.length; i++) cs[i] = pool.acquire();
+			Thread.sleep(50L);
+			int open = pool.getCountOpenConnections();
+			pool.release(cs[0]);
+			pool.release(cs[1]);
+			pool.release(cs[2]);
+			Thread.sleep(100L);
+			assertEquals("Connections for peak usage kept", open, pool.getCountOpenConnections());
+			pool.release(cs[3]);
+			Thread.sleep(500L);
+			assertEquals("Shrunk after peak window", 1, pool.getCountOpenConnections());
+		} catch (Exception se) {
+			se.printStackTrace();
+			throw new AssertionError(se);
+		} finally {
+			pool.close();
+		}
+	}
 }
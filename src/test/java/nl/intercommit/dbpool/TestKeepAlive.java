@@ -0,0 +1,98 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestKeepAlive {
+
+	@Test
+	public void testReplaceInvalid() {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 3;
+		DbPoolWatcher poolWatcher = pool.getWatcher();
+		poolWatcher.keepAliveIntervalMs = 50L;
+		poolWatcher.timeOutWatchIntervalMs = 20L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			PooledConnection broken = pool.bag.values().get(0);
+			broken.dbConn.close();
+			Thread.sleep(300L);
+			assertEquals("Failed keepalive validations", 1, poolWatcher.keepAliveFailedCount.get());
+			assertTrue("Idle connections validated", poolWatcher.keepAliveCount.get() > 3);
+			assertFalse("Invalid connection removed", pool.bag.values().contains(broken));
+			assertEquals("Invalid connection replaced", 3, pool.getCountOpenConnections());
+			ValidationPolicy policy = new ValidationPolicy();
+			policy.validatedTrustTimeMs = 60000L;
+			pool.setValidationPolicy(policy);
+			PooledConnection pc = pool.bag.values().get(0);
+			assertTrue("Validated recently", System.currentTimeMillis() - pc.lastValidated < 200L);
+			assertFalse("No validation on acquire", policy.isValidationRequired(pc));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testValidationNotInWatcher() throws Exception {
+
+		final CountDownLatch hang = new CountDownLatch(1);
+		final AtomicInteger validating = new AtomicInteger();
+		DbPool pool = new DbPool();
+		pool.minSize = 3;
+		pool.closerThreads = 2;
+		pool.setFactory(new HSQLConnFactory() {
+			@Override public void validate(Connection dbConn) throws SQLException {
+				validating.incrementAndGet();
+				try {
+					hang.await(1L, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					throw new SQLException(ie);
+				}
+				super.validate(dbConn);
+			}
+		});
+		try {
+			pool.open(true);
+			// Set after open, the checks are done by the test instead of the watcher.
+			DbPoolWatcher poolWatcher = new DbPoolWatcher(pool);
+			poolWatcher.keepAliveIntervalMs = 10L;
+			pool.setWatcher(poolWatcher);
+			for (PooledConnection pc : pool.bag.values()) poolWatcher.idled(pc);
+			Thread.sleep(20L);
+			long start = System.currentTimeMillis();
+			poolWatcher.checkKeepAlive();
+			assertTrue("Watcher does not wait for validation", System.currentTimeMillis() - start < 500L);
+			assertEquals("Validations running", 2, poolWatcher.keepAlivesRunning.get());
+			poolWatcher.checkKeepAlive();
+			assertEquals("Validations limited to batch size", 2, poolWatcher.keepAlivesRunning.get());
+			hang.countDown();
+			long end = System.currentTimeMillis() + 1000L;
+			while (poolWatcher.keepAlivesRunning.get() > 0 && System.currentTimeMillis() < end) Thread.sleep(5L);
+			assertEquals("Validations done", 2, poolWatcher.keepAliveCount.get());
+			assertEquals("Validated connections available", 3, pool.getCountIdleConnections());
+			Thread.sleep(poolWatcher.timeOutWatchIntervalMs);
+			poolWatcher.checkKeepAlive();
+			end = System.currentTimeMillis() + 1000L;
+			while (poolWatcher.keepAliveCount.get() < 3 && System.currentTimeMillis() < end) Thread.sleep(5L);
+			for (PooledConnection pc : pool.bag.values()) {
+				assertTrue("Remaining connection validated", pc.lastValidated > 0L);
+			}
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestLeaseProfiler {
+
+	@Test
+	public void testProfileBySite() {
+
+		DbPool pool = new DbPool();
+		pool.acquireSiteSampleRate = 1;
+		LeaseProfiler profiler = new LeaseProfiler();
+		pool.setLeaseProfiler(profiler);
+		pool.getWatcher().maxLeaseTimeMs = 50L;
+		pool.getWatcher().timeOutWatchIntervalMs = 20L;
+		pool.getWatcher().evictThreshold = 0;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			for (int i = 0; i < 3; i++) {
+				pool.release(pool.acquire());
+			}
+			Connection c = pool.acquire();
+			Thread.sleep(250L);
+			pool.release(c);
+			List<LeaseProfiler.Site> top = pool.getTopLeaseSites(10);
+			assertEquals("Two call sites", 2, top.size());
+			LeaseProfiler.Site longest = top.get(0);
+			assertEquals("One long lease", 1L, longest.getLeases());
+			assertTrue("Hold time", longest.getMaxHoldTimeMs() >= 250L);
+			assertTrue("Lease expired more than once", longest.getExpired() > 1L);
+			assertEquals("Expired leases counted by watcher", longest.getExpired(), (long) pool.getWatcher().expiredCount);
+			assertEquals("Short leases from one site", 3L, top.get(1).getLeases());
+			assertEquals("No expired leases", 0L, top.get(1).getExpired());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testAdaptiveLeaseTimeOut() {
+
+		DbPool pool = new DbPool();
+		pool.acquireSiteSampleRate = 1;
+		LeaseProfiler profiler = new LeaseProfiler();
+		profiler.adaptiveLeaseTimeOut = true;
+		profiler.minLeaseSamples = 16;
+		profiler.leaseTimeOutUpdateInterval = 16;
+		profiler.minLeaseTimeOutMs = 100L;
+		pool.setLeaseProfiler(profiler);
+		pool.getWatcher().maxLeaseTimeMs = 60000L;
+		pool.getWatcher().timeOutWatchIntervalMs = 20L;
+		pool.getWatcher().evictThreshold = 0;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection c = null;
+			for (int i = 0; i < 17; i++) {
+				c = pool.acquire();
+				if (i < 16) pool.release(c);
+			}
+			LeaseProfiler.Site site = pool.getTopLeaseSites(1).get(0);
+			assertEquals("Time-out from short leases is the minimum", 100L, site.getLeaseTimeOutMs());
+			assertEquals("Adaptive lease time-out used", 100L, pool.connections.get(c).getMaxLeaseTimeMs());
+			Thread.sleep(250L);
+			assertTrue("Lease expired", pool.getWatcher().expiredCount > 0);
+			pool.release(c);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testHoldTimeQuantile() {
+
+		LeaseProfiler.Site site = new LeaseProfiler.Site(new StackTraceElement[0]);
+		for (int i = 0; i < 99; i++) site.released(10L);
+		site.released(1000L);
+		long p50 = site.getHoldTimeQuantileMs(0.5);
+		assertTrue("Median " + p50, p50 >= 10L && p50 <= 12L);
+		long p100 = site.getHoldTimeQuantileMs(1.0);
+		assertTrue("Maximum " + p100, p100 >= 1000L && p100 <= 1200L);
+		site.decay();
+		assertEquals("Median after decay", p50, site.getHoldTimeQuantileMs(0.5));
+	}
+}
@@ -0,0 +1,83 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+public class TestMinIdle {
+
+	@Test
+	public void testMinIdle() {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 1;
+		pool.maxSize = 5;
+		pool.minIdle = 2;
+		pool.getWatcher().timeOutWatchIntervalMs = 20L;
+		pool.getWatcher().maxIdleTimeMs = 50L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Thread.sleep(200L);
+			assertEquals("Idle connections ready", 2, pool.getCountIdleConnections());
+			Connection c1 = pool.acquire();
+			Connection c2 = pool.acquire();
+			Thread.sleep(200L);
+			assertEquals("Idle connections ready after leases", 2, pool.getCountIdleConnections());
+			assertEquals("Open connections", 4, pool.getCountOpenConnections());
+			Connection c3 = pool.acquire();
+			Connection c4 = pool.acquire();
+			Thread.sleep(200L);
+			assertEquals("Idle connection up to maximum size", 1, pool.getCountIdleConnections());
+			pool.release(c1);
+			pool.release(c2);
+			pool.release(c3);
+			pool.release(c4);
+			Thread.sleep(300L);
+			assertEquals("Idle connections closed down to minimum idle", 2, pool.getCountIdleConnections());
+			assertTrue("Idle connections closed", pool.getWatcher().idledCount >= 3);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testPredictedDemand() {
+
+		DbPool pool = new DbPool();
+		pool.maxSize = 10;
+		pool.acquireRateShortMs = 1000L;
+		pool.acquireRateLongMs = 10000L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection c1 = pool.acquire();
+			Connection c2 = pool.acquire();
+			long now = 100000L;
+			assertEquals("First sample", 0, pool.getPredictedDemand(now));
+			for (int i = 0; i < 20; i++) {
+				pool.connectionsAcquired.addAndGet(10L);
+				now += 1000L;
+				pool.getPredictedDemand(now);
+			}
+			assertEquals("Steady acquire rate", 0, pool.getPredictedDemand(now + 1L));
+			pool.connectionsAcquired.addAndGet(40L);
+			now += 1000L;
+			int demand = pool.getPredictedDemand(now);
+			assertTrue("Rising acquire rate " + demand, demand > 0 && demand <= 10);
+			pool.release(c1);
+			pool.release(c2);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
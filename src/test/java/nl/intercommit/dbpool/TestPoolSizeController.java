@@ -0,0 +1,58 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+public class TestPoolSizeController {
+
+	@Test
+	public void testGrowAndShrink() {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 0;
+		pool.maxSize = 2;
+		pool.getWatcher().maxLeaseTimeMs = 0L;
+		pool.getWatcher().maxIdleTimeMs = 0L;
+		pool.setFactory(new HSQLConnFactory());
+		PoolSizeController sizer = new PoolSizeController();
+		sizer.maxMaxSize = 4;
+		sizer.adjustIntervalMs = 100L;
+		try {
+			pool.open(true);
+			// Set after open, the checks are done by the test instead of the watcher.
+			pool.setSizeController(sizer);
+			Connection c1 = pool.acquire();
+			Connection c2 = pool.acquire();
+			sizer.acquired(100L);
+			sizer.check(pool, 1000L);
+			sizer.check(pool, 1100L);
+			assertEquals("Grown", 3, pool.getEffectiveMaxSize());
+			assertEquals("Minimum follows usage", 2, pool.getEffectiveMinSize());
+			assertEquals("Decision", 1, sizer.getDecisions().size());
+			assertEquals("Decision max", 3, sizer.getLastDecision().maxSize);
+			pool.release(c1);
+			pool.release(c2);
+			// Cooldown interval, then 3 intervals with low utilization.
+			sizer.check(pool, 1200L);
+			sizer.check(pool, 1300L);
+			sizer.check(pool, 1400L);
+			assertEquals("Not yet shrunk", 3, pool.getEffectiveMaxSize());
+			sizer.check(pool, 1500L);
+			assertEquals("Shrunk", 2, pool.getEffectiveMaxSize());
+			assertEquals("Minimum lowered", 0, pool.getEffectiveMinSize());
+			assertEquals("Decisions", 2, sizer.getDecisions().size());
+			assertEquals("Grow count", 1, sizer.growCount);
+			assertEquals("Shrink count", 1, sizer.shrinkCount);
+			assertEquals("Configured maximum unchanged", 2, pool.maxSize);
+			assertEquals("Configured minimum unchanged", 0, pool.minSize);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestQueryTimeOut {
+
+	/** Used as database function to execute a slow statement. */
+	public static int sleep(final long ms) throws InterruptedException {
+
+		Thread.sleep(ms);
+		return 1;
+	}
+
+	@Test
+	public void testCancelAfterTimeOut() {
+
+		DbPool pool = new DbPool();
+		pool.queryTimeOutMs = 50L;
+		StatementTimer timer = new StatementTimer(10L, 8);
+		pool.setStatementTimer(timer);
+		pool.setFactory(new HSQLConnFactory());
+		DbConn db = null;
+		try {
+			pool.open(true);
+			db = new DbConn(pool);
+			db.setQuery("CREATE FUNCTION SLEEP_MS(MS BIGINT) RETURNS INT LANGUAGE JAVA DETERMINISTIC NO SQL "
+					+ "EXTERNAL NAME 'CLASSPATH:nl.intercommit.dbpool.TestQueryTimeOut.sleep'");
+			db.ps.execute();
+			db.setQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+			db.rs = db.ps.executeQuery();
+			Thread.sleep(100L);
+			assertEquals("Open statement that is not executing does not time out", 0L, pool.queryTimeOuts.get());
+			db.setQuery("CALL SLEEP_MS(150)");
+			db.ps.execute();
+			assertEquals("Query timed out", 1L, pool.queryTimeOuts.get());
+			db.closeQuery();
+			Thread.sleep(100L);
+			assertEquals("Closed query does not time out", 1L, pool.queryTimeOuts.get());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			if (db != null) db.close();
+			pool.close();
+			timer.shutdown();
+		}
+	}
+
+	@Test
+	public void testNoCancelAfterExecution() throws Exception {
+
+		DbPool pool = new DbPool();
+		pool.queryTimeOutMs = 30L;
+		StatementTimer timer = new StatementTimer(10L, 8);
+		pool.setStatementTimer(timer);
+		final AtomicInteger cancels = new AtomicInteger();
+		PreparedStatement slow = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), 
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+			@Override public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+				if ("cancel".equals(m.getName())) cancels.incrementAndGet();
+				if ("execute".equals(m.getName())) {
+					Thread.sleep(100L);
+					return Boolean.FALSE;
+				}
+				return null;
+			}
+		});
+		PreparedStatement ps = QueryTimeOutHandler.newProxy(pool, slow);
+		final CountDownLatch closerBlocked = new CountDownLatch(1);
+		try {
+			// Keeps the closer busy so that the cancel task runs after the execution has finished.
+			pool.getCloser().execute(new Runnable() {
+				@Override public void run() {
+					try { closerBlocked.await(); } catch (InterruptedException ignored) {}
+				}
+			});
+			ps.execute();
+			assertEquals("Query timed out", 1L, pool.queryTimeOuts.get());
+			closerBlocked.countDown();
+			Thread.sleep(50L);
+			assertEquals("Finished execution not cancelled", 0, cancels.get());
+			ps.execute();
+			Thread.sleep(50L);
+			assertEquals("Running execution cancelled", 1, cancels.get());
+		} finally {
+			closerBlocked.countDown();
+			pool.close();
+			timer.shutdown();
+		}
+	}
+}
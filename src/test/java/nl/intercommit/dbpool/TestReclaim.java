@@ -0,0 +1,70 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestReclaim {
+
+	@Test
+	public void testReclaimDbConn() {
+
+		DbPool pool = createPool(false);
+		try {
+			pool.open(true);
+			leak(pool);
+			waitForReclaim(pool);
+			assertEquals("Reclaimed connections", 1L, pool.connectionsReclaimed.get());
+			assertEquals("Connection without session state is closed", 0, pool.getCountOpenConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testReclaimProxy() {
+
+		DbPool pool = createPool(true);
+		try {
+			pool.open(true);
+			leak(pool);
+			waitForReclaim(pool);
+			assertEquals("Reclaimed connections", 1L, pool.connectionsReclaimed.get());
+			assertEquals("Connection with session state is returned to the pool", 1, pool.getCountIdleConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	protected DbPool createPool(boolean useProxy) {
+
+		DbPool pool = new DbPool();
+		pool.useProxy = useProxy;
+		pool.reclaimUnreachable = true;
+		pool.getWatcher().timeOutWatchIntervalMs = 20L;
+		pool.setFactory(new HSQLConnFactory());
+		return pool;
+	}
+
+	/** Acquires a connection without releasing it. */
+	protected void leak(DbPool pool) throws Exception {
+
+		DbConn db = new DbConn(pool);
+		db.setQuery("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+		db.closeQuery();
+	}
+
+	protected void waitForReclaim(DbPool pool) throws InterruptedException {
+
+		for (int i = 0; i < 50 && pool.connectionsReclaimed.get() == 0L; i++) {
+			System.gc();
+			Thread.sleep(20L);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestRetire {
+
+	/** Registers the connections it created, so that it can tell which connections it closed. */
+	static class TrackingFactory extends HSQLConnFactory {
+
+		final Set<Connection> created = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+		final AtomicInteger closedOwn = new AtomicInteger();
+		final AtomicInteger closedOther = new AtomicInteger();
+
+		@Override
+		public Connection getConnection() throws SQLException {
+
+			Connection c = super.getConnection();
+			created.add(c);
+			return c;
+		}
+
+		@Override
+		public void close(Connection dbConn, boolean rollback) {
+
+			if (created.contains(dbConn)) {
+				closedOwn.incrementAndGet();
+			} else {
+				closedOther.incrementAndGet();
+			}
+			super.close(dbConn, rollback);
+		}
+	}
+
+	@Test
+	public void testMaxLeases() {
+
+		DbPool pool = new DbPool();
+		pool.maxSize = 1;
+		pool.maxLeases = 3;
+		pool.retireJitter = 0.0;
+		pool.getWatcher().timeOutWatchIntervalMs = 10L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection first = null;
+			for (int i = 0; i < 3; i++) {
+				Connection c = pool.acquire();
+				if (first == null) first = c;
+				assertTrue("Same connection", first == c);
+				pool.release(c);
+			}
+			Thread.sleep(100L);
+			assertEquals("Retired", 1L, pool.connectionsRetired.get());
+			assertEquals("Replaced", 1, pool.getCountOpenConnections());
+			Connection c = pool.acquire();
+			assertFalse("New connection", first == c);
+			pool.release(c);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testMaxLifeTime() {
+
+		DbPool pool = new DbPool();
+		pool.maxSize = 1;
+		pool.maxLifeTimeMs = 200L;
+		pool.retireJitter = 0.0;
+		pool.getWatcher().timeOutWatchIntervalMs = 10L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			Thread.sleep(300L);
+			assertEquals("Not retired during lease", 0L, pool.connectionsRetired.get());
+			assertEquals("Replacement created", 2, pool.getCountOpenConnections());
+			pool.release(c);
+			assertEquals("Retired on release", 1L, pool.connectionsRetired.get());
+			TestUtil.waitForClosed(pool);
+			assertTrue("Retired connection closed", c.isClosed());
+			assertEquals("Replaced", 1, pool.getCountOpenConnections());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testFlushRolling() {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 4;
+		pool.maxSize = 4;
+		pool.maxConcurrentRetires = 1;
+		pool.getWatcher().timeOutWatchIntervalMs = 10L;
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			pool.flushRolling();
+			int maxOpen = 0;
+			for (int i = 0; i < 100 && pool.connectionsRetired.get() < 4L; i++) {
+				maxOpen = Math.max(maxOpen, pool.getCountOpenConnections());
+				Thread.sleep(10L);
+			}
+			assertEquals("All connections replaced", 4L, pool.connectionsRetired.get());
+			assertTrue("One connection replaced at a time", maxOpen <= 5);
+			assertEquals("Open connections", 4, pool.getCountOpenConnections());
+			for (PooledConnection pc : pool.connections.values()) {
+				assertEquals("New generation", pool.generation, pc.generation);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testSwapFactory() {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 2;
+		pool.getWatcher().timeOutWatchIntervalMs = 10L;
+		TrackingFactory oldFactory = new TrackingFactory();
+		pool.setFactory(oldFactory);
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			TrackingFactory factory = new TrackingFactory();
+			pool.swapFactory(factory);
+			assertTrue("Factory swapped", pool.getFactory() == factory);
+			Thread.sleep(200L);
+			assertEquals("Idle connection replaced", 1L, pool.connectionsRetired.get());
+			assertFalse("Leased connection not retired", c.isClosed());
+			pool.release(c);
+			assertEquals("Leased connection retired on release", 2L, pool.connectionsRetired.get());
+			for (PooledConnection pc : pool.connections.values()) {
+				assertEquals("Created by new factory", 1, pc.generation);
+			}
+			pool.close();
+			assertEquals("Old factory closed its connections", 2, oldFactory.closedOwn.get());
+			assertEquals("Old factory closed no other connections", 0, oldFactory.closedOther.get());
+			assertEquals("New factory closed its connections", factory.created.size(), factory.closedOwn.get());
+			assertEquals("New factory closed no other connections", 0, factory.closedOther.get());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
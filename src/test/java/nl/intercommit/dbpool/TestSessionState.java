@@ -0,0 +1,52 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+public class TestSessionState {
+
+	@Test
+	public void testResetChangedOnly() {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		pool.useProxy = true;
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			SessionState session = ConnectionProxy.getHandler(c).getPooledConnection().getSessionState();
+			assertEquals("Nothing changed", 0, session.getChanged());
+			c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			assertEquals("Isolation changed", SessionState.TRANSACTION_ISOLATION, session.getChanged());
+			Statement s = c.createStatement();
+			assertEquals("Statement connection is proxy", c, s.getConnection());
+			s.execute("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+			assertEquals("Statement executed without auto-commit", true, session.isTransactionPending());
+			c.commit();
+			assertEquals("Committed", false, session.isTransactionPending());
+			s.execute("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+			s.close();
+			c.close();
+			assertEquals("Rolled back on release", false, session.isTransactionPending());
+			assertEquals("Reset on release", 0, session.getChanged());
+			c = pool.acquire();
+			assertEquals("Isolation restored", Connection.TRANSACTION_READ_COMMITTED, c.getTransactionIsolation());
+			c.setAutoCommit(true);
+			c.createStatement().execute("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+			assertEquals("No transaction with auto-commit", false, session.isTransactionPending());
+			c.close();
+			c = pool.acquire();
+			assertEquals("Auto-commit restored", false, c.getAutoCommit());
+			c.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestStripedConnectionBag {
+
+	@Test
+	public void testStealFromOtherStripes() throws Exception {
+
+		final StripedConnectionBag bag = new StripedConnectionBag(4);
+		for (int i = 0; i < 8; i++) {
+			final PooledConnection pc = new PooledConnection(null, 0L);
+			pc.setState(PooledConnection.STATE_IDLE);
+			bag.add(pc);
+		}
+		for (int i = 0; i < bag.getStripeCount(); i++) {
+			assertEquals("Connections spread over stripes", 2, bag.stripes[i].size());
+		}
+		final Set<PooledConnection> leased = new HashSet<PooledConnection>();
+		for (int i = 0; i < 8; i++) {
+			final PooledConnection pc = bag.borrow(0L);
+			assertNotNull("Idle connection stolen from other stripe", pc);
+			leased.add(pc);
+		}
+		assertEquals("All connections leased", 8, leased.size());
+		assertNull("No idle connections left", bag.borrow(0L));
+		final PooledConnection pc = leased.iterator().next();
+		bag.requite(pc);
+		assertEquals("Released connection", pc, bag.borrow(0L));
+		assertEquals("Removed", true, bag.remove(pc));
+		assertEquals("Connections left", 7, bag.size());
+		int striped = 0;
+		for (int i = 0; i < bag.getStripeCount(); i++) striped += bag.stripes[i].size();
+		assertEquals("Connection removed from stripe", 7, striped);
+	}
+}
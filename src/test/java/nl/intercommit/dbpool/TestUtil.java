@@ -15,6 +15,16 @@ public class TestUtil {
 	public static String insertRecord = "insert into t (name) values (@name)";
 	public static String selectRecord = "select id from t where name like @name";
 	
+	/** Waits (at most a second) until the connections waiting to be closed by the pool are closed. */
+	public static void waitForClosed(DbPool pool) {
+		
+		try {
+			for (int i = 0; i < 100 && pool.getCloser().getBacklog() > 0; i++) Thread.sleep(10L);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 	/** Deletes any created tables. */
 	public static void clearDbInMem(DbPool pool) {
 		
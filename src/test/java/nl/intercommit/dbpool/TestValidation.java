@@ -0,0 +1,88 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class TestValidation {
+
+	@Test
+	public void testSkipRecentlyUsed() {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		try {
+			pool.open(true);
+			pool.release(pool.acquire());
+			assertEquals("Without validation policy (default) connections are always validated", 1L, pool.validationsPerformed.get());
+			pool.validationsPerformed.set(0L);
+			pool.setValidationPolicy(new ValidationPolicy());
+			pool.getValidationPolicy().maxTrustTimeMs = 60000L;
+			pool.release(pool.acquire());
+			pool.release(pool.acquire());
+			assertEquals("Recently used connections should not be validated", 0L, pool.validationsPerformed.get());
+			assertEquals("Validations skipped", 2L, pool.validationsSkipped.get());
+			pool.getValidationPolicy().maxTrustTimeMs = 0L;
+			pool.release(pool.acquire());
+			assertEquals("Without trust time connections are always validated", 1L, pool.validationsPerformed.get());
+			pool.setValidationPolicy(null);
+			pool.release(pool.acquire());
+			assertEquals("Without validation policy connections are always validated", 2L, pool.validationsPerformed.get());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testValidateAfterLeaseError() {
+
+		DbPool pool = new DbPool();
+		pool.setFactory(new HSQLConnFactory());
+		pool.useProxy = true;
+		ValidationPolicy policy = new ValidationPolicy();
+		policy.maxTrustTimeMs = 60000L;
+		pool.setValidationPolicy(policy);
+		try {
+			pool.open(true);
+			Connection c = pool.acquire();
+			try {
+				c.createStatement().execute("SELECT NO_SUCH_COLUMN FROM NO_SUCH_TABLE");
+				fail("Statement should fail");
+			} catch (SQLException expected) {
+				// Marks the connection for validation.
+			}
+			c.close();
+			pool.release(pool.acquire());
+			assertEquals("Connection validated after an error during the lease", 1L, pool.validationsPerformed.get());
+			pool.release(pool.acquire());
+			assertEquals("Connection trusted again after validation", 1L, pool.validationsPerformed.get());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testDistrustAfterFailure() {
+
+		ValidationPolicy policy = new ValidationPolicy();
+		policy.maxTrustTimeMs = 1000L;
+		PooledConnection pc = new PooledConnection(null, 0L);
+		pc.setLeased(false, 0L);
+		assertEquals("Released connection is trusted", false, policy.isValidationRequired(pc));
+		pc.waitStart -= 400L;
+		policy.validated(pc, false);
+		assertEquals("Trust time lowered below half the idle time", true, policy.getTrustTimeMs() <= 200L);
+		pc.setLeased(false, 0L);
+		assertEquals("After a failure, connections are always validated", true, policy.isValidationRequired(pc));
+	}
+}
@@ -0,0 +1,47 @@
+package nl.intercommit.dbpool;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestWatcherScheduler {
+
+	@Test
+	public void testSharedIdleChecks() {
+
+		DbPoolWatcherScheduler scheduler = new DbPoolWatcherScheduler(1);
+		DbPool pool1 = createPool(scheduler, 50L);
+		DbPool pool2 = createPool(scheduler, 20L);
+		try {
+			pool1.open(true);
+			pool2.open(true);
+			assertEquals("Watchers registered", 2, scheduler.getWatcherCount());
+			pool1.minSize = 1;
+			pool2.minSize = 1;
+			Thread.sleep(250L);
+			assertEquals("Closed idle connections pool 1", 2, pool1.getWatcher().idledCount);
+			assertEquals("Closed idle connections pool 2", 2, pool2.getWatcher().idledCount);
+			pool1.close();
+			assertEquals("Watcher removed on close", 1, scheduler.getWatcherCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		} finally {
+			pool1.close();
+			pool2.close();
+			scheduler.shutdown();
+		}
+		assertEquals("All watchers removed", 0, scheduler.getWatcherCount());
+	}
+
+	protected DbPool createPool(final DbPoolWatcherScheduler scheduler, final long intervalMs) {
+
+		DbPool pool = new DbPool();
+		pool.minSize = 3;
+		pool.setWatcherScheduler(scheduler);
+		pool.getWatcher().maxIdleTimeMs = 100L;
+		pool.getWatcher().timeOutWatchIntervalMs = intervalMs;
+		pool.setFactory(new HSQLConnFactory());
+		return pool;
+	}
+}